@@ -0,0 +1,79 @@
+package net.denixx.tctt.benchmark;
+
+import net.denixx.tctt.ConversionOptions;
+import net.denixx.tctt.Converter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole {@link Converter#transpondTable} runs, from a synthetic file on disk to the written output.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class EndToEndBenchmark extends InputShape {
+    @Param({"1", "4"})
+    public int parallelism;
+
+    /**
+     * 0 keeps the table in memory, anything else (like 64m) uses the external mode.
+     */
+    @Param("0")
+    public String memoryBudget;
+
+    private File dir;
+    private File file;
+    private ConversionOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("tctt-bench-").toFile();
+        file = input().writeTo(new File(dir, "input.csv"));
+        options = ConversionOptions.builder()
+                .parallelism(parallelism)
+                .memoryBudget(parseSize(memoryBudget))
+                .spillDirectory(dir)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public boolean transpondTable() throws IOException {
+        return Converter.transpondTable(file, options);
+    }
+
+    private static long parseSize(String size) {
+        char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+        int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+        return Long.parseLong(shift == 0 ? size : size.substring(0, size.length() - 1)) << shift;
+    }
+}
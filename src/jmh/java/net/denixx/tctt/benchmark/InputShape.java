@@ -0,0 +1,47 @@
+package net.denixx.tctt.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Shape of the synthetic input, shared by all benchmarks; override with {@code -p name=v1,v2}.
+ */
+@State(Scope.Benchmark)
+public abstract class InputShape {
+    @Param("500000")
+    public int rows;
+
+    @Param({"1000", "100000"})
+    public int values;
+
+    @Param("60")
+    public int dates;
+
+    @Param({"0.9", "0.05"})
+    public double fill;
+
+    /**
+     * "N" or "MIN-MAX".
+     */
+    @Param("8-64")
+    public String valueLength;
+
+    @Param("0")
+    public double valueSkew;
+
+    protected SyntheticInput input() {
+        int dash = valueLength.indexOf('-');
+        int minLength = Integer.parseInt(dash < 0 ? valueLength : valueLength.substring(0, dash));
+        int maxLength = dash < 0 ? minLength : Integer.parseInt(valueLength.substring(dash + 1));
+        return SyntheticInput.builder()
+                .rows(rows)
+                .distinctValues(values)
+                .distinctDates(dates)
+                .fill(fill)
+                .minValueLength(minLength)
+                .maxValueLength(maxLength)
+                .valueSkew(valueSkew)
+                .build();
+    }
+}
@@ -0,0 +1,137 @@
+package net.denixx.tctt.benchmark;
+
+import net.denixx.tctt.CountTable;
+import net.denixx.tctt.RowSink;
+import net.denixx.tctt.ThreeColumnReader;
+import net.denixx.tctt.TransposedCsvWriter;
+import net.denixx.tctt.TransposedRows;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every phase of a conversion on its own, fed with the output of the previous phases prepared in setup:
+ * parse (bytes to rows), aggregate (rows to a {@link CountTable}), sort (averages and the output order),
+ * transpose (the table to {@link TransposedRows}) and write (rows to CSV text).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class PhaseBenchmark extends InputShape {
+    private byte[] csv;
+    private RecordedRows recordedRows;
+    private CountTable table;
+    private int[] sortedDateIds;
+    private int[] sortedValueIds;
+    private TransposedRows rows;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        csv = input().generate();
+        recordedRows = new RecordedRows();
+        ThreeColumnReader.read(new ByteArrayInputStream(csv), true, recordedRows);
+
+        table = aggregate();
+        sortedDateIds = table.sortedDateIds();
+        sortedValueIds = table.sortedValueIds();
+        // the sorted table is kept for sort(), transposing needs its own copy
+        rows = aggregate().toRows(sortedDateIds);
+    }
+
+    @Benchmark
+    public long parse() throws IOException {
+        CountingSink sink = new CountingSink();
+        ThreeColumnReader.read(new ByteArrayInputStream(csv), true, sink);
+        return sink.checksum;
+    }
+
+    @Benchmark
+    public CountTable aggregate() {
+        CountTable table = new CountTable();
+        recordedRows.replay(table);
+        return table;
+    }
+
+    @Benchmark
+    public int[] sort() {
+        table.sortedDateIds();
+        return table.sortedValueIds();
+    }
+
+    @Benchmark
+    public TransposedRows transpose(FreshTable fresh) {
+        return fresh.table.toRows(sortedDateIds);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        CountingWriter out = new CountingWriter();
+        try (TransposedCsvWriter writer = new TransposedCsvWriter(out)) {
+            writer.writeHeader(table::date, sortedDateIds);
+            for (int valueId : sortedValueIds) {
+                writer.writeRow(table, rows, valueId, sortedDateIds.length);
+            }
+        }
+        return out.chars;
+    }
+
+    /**
+     * {@link CountTable#toRows} releases the matrix, so every call needs a table of its own.
+     */
+    @State(Scope.Thread)
+    public static class FreshTable {
+        CountTable table;
+
+        @Setup(Level.Invocation)
+        public void setUp(PhaseBenchmark benchmark) {
+            table = benchmark.aggregate();
+        }
+    }
+
+    private static class CountingSink implements RowSink {
+        long checksum;
+
+        @Override
+        public void add(String date, String value, long count) {
+            checksum += date.length() + value.length() + count;
+        }
+
+        @Override
+        public void add(byte[] buf, int dateOff, int dateLen, int valueOff, int valueLen, long count) {
+            checksum += dateLen + valueLen + count;
+        }
+    }
+
+    private static class CountingWriter extends Writer {
+        long chars;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            chars += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
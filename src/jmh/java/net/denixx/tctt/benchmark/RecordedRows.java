@@ -0,0 +1,58 @@
+package net.denixx.tctt.benchmark;
+
+import net.denixx.tctt.RowSink;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Rows as the reader hands them out, kept to be replayed into a sink without parsing.
+ */
+public class RecordedRows implements RowSink {
+    private byte[] arena = new byte[1 << 16];
+    private int arenaSize;
+    private int[] slices = new int[1 << 12];
+    private long[] counts = new long[1 << 10];
+    private int size;
+
+    @Override
+    public void add(String date, String value, long count) {
+        byte[] d = date.getBytes(StandardCharsets.UTF_8);
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        byte[] buf = Arrays.copyOf(d, d.length + v.length);
+        System.arraycopy(v, 0, buf, d.length, v.length);
+        add(buf, 0, d.length, d.length, v.length, count);
+    }
+
+    @Override
+    public void add(byte[] buf, int dateOff, int dateLen, int valueOff, int valueLen, long count) {
+        if (size == counts.length) {
+            counts = Arrays.copyOf(counts, size * 2);
+            slices = Arrays.copyOf(slices, size * 8);
+        }
+        slices[size * 4] = append(buf, dateOff, dateLen);
+        slices[size * 4 + 1] = dateLen;
+        slices[size * 4 + 2] = append(buf, valueOff, valueLen);
+        slices[size * 4 + 3] = valueLen;
+        counts[size++] = count;
+    }
+
+    public void replay(RowSink sink) {
+        for (int i = 0; i < size; i++) {
+            sink.add(arena, slices[i * 4], slices[i * 4 + 1], slices[i * 4 + 2], slices[i * 4 + 3], counts[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int append(byte[] buf, int off, int len) {
+        if (arenaSize + len > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + len));
+        }
+        System.arraycopy(buf, off, arena, arenaSize, len);
+        arenaSize += len;
+        return arenaSize - len;
+    }
+}
@@ -0,0 +1,158 @@
+package net.denixx.tctt.benchmark;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generator of three-column inputs ("date value count" rows after a header) of a given shape.
+ * The same parameters and seed always give the same bytes.
+ */
+@Value
+@Builder(toBuilder = true)
+public class SyntheticInput {
+    private static final String HEADER = "\"time_markers\" \"values\" \"counts\"\n";
+    private static final char[] VALUE_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789-_/".toCharArray();
+
+    @Builder.Default
+    int rows = 100_000;
+
+    @Builder.Default
+    int distinctValues = 1_000;
+
+    @Builder.Default
+    int distinctDates = 60;
+
+    /**
+     * Share of dates every value appears on: 1 is a fully filled table, 0.01 a very sparse one.
+     */
+    @Builder.Default
+    double fill = 0.5;
+
+    /**
+     * Value lengths are spread evenly between these two.
+     */
+    @Builder.Default
+    int minValueLength = 8;
+
+    @Builder.Default
+    int maxValueLength = 40;
+
+    /**
+     * 0 picks values uniformly; bigger skews rows towards the first values (Zipf-like, 1 is the classic one).
+     */
+    @Builder.Default
+    double valueSkew = 0;
+
+    @Builder.Default
+    long maxCount = 100_000;
+
+    @Builder.Default
+    long seed = 1;
+
+    public byte[] generate() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                (int) Math.min(Integer.MAX_VALUE - 8, (long) rows * (maxValueLength + 24) + HEADER.length()));
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public File writeTo(File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            writeTo(out);
+        }
+        return file;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        byte[][] values = new byte[distinctValues][];
+        for (int v = 0; v < distinctValues; v++) {
+            values[v] = value(v);
+        }
+        byte[][] dates = new byte[distinctDates][];
+        for (int d = 0; d < distinctDates; d++) {
+            dates[d] = date(d).getBytes(StandardCharsets.US_ASCII);
+        }
+        int datesPerValue = (int) Math.max(1, Math.min(distinctDates, Math.round(fill * distinctDates)));
+        double[] cumulative = valueSkew > 0 ? zipfCumulative() : null;
+
+        Random random = new Random(seed);
+        byte[] count = new byte[20];
+        out.write(HEADER.getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; i < rows; i++) {
+            int v = cumulative == null ? random.nextInt(distinctValues) : pick(cumulative, random.nextDouble());
+            // every value has its own window of dates, so the table is as sparse as asked
+            int d = (int) (((long) v * 7919 + random.nextInt(datesPerValue)) % distinctDates);
+            out.write(dates[d]);
+            out.write(' ');
+            out.write(values[v]);
+            out.write(' ');
+            int countStart = formatLong((long) (random.nextDouble() * maxCount), count);
+            out.write(count, countStart, count.length - countStart);
+            out.write('\n');
+        }
+    }
+
+    private byte[] value(int v) {
+        Random random = new Random(seed * 31 + v);
+        int length = minValueLength + (maxValueLength > minValueLength ? random.nextInt(maxValueLength - minValueLength + 1) : 0);
+        StringBuilder sb = new StringBuilder(length).append('/').append(v).append('/');
+        while (sb.length() < length) {
+            sb.append(VALUE_CHARS[random.nextInt(VALUE_CHARS.length)]);
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String date(int d) {
+        // days from 2019-01-01 with 28-day months: easy to read and sorts like real dates
+        return String.format("%04d-%02d-%02d", 2019 + d / 336, d / 28 % 12 + 1, d % 28 + 1);
+    }
+
+    private double[] zipfCumulative() {
+        double[] cumulative = new double[distinctValues];
+        double sum = 0;
+        for (int v = 0; v < distinctValues; v++) {
+            sum += 1 / Math.pow(v + 1, valueSkew);
+            cumulative[v] = sum;
+        }
+        for (int v = 0; v < distinctValues; v++) {
+            cumulative[v] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulative, double x) {
+        int lo = 0;
+        int hi = cumulative.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] < x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int formatLong(long value, byte[] buf) {
+        int pos = buf.length;
+        do {
+            buf[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        return pos;
+    }
+}
@@ -0,0 +1,163 @@
+package net.denixx.tctt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Saves a {@link CountTable} (both dictionaries and all counts) into a compact binary file and loads it back,
+ * so new rows can be added to an already converted history without parsing it again.
+ * <p>
+ * Layout: magic, version, rollup name (empty for none), dates (length-prefixed UTF-8), row count,
+ * then every value with its cells as (date id, count) pairs. Numbers are varints, counts are zigzag-encoded.
+ * A loaded table rolls up the dates added to it the way the saved one did.
+ */
+public class AggregateState {
+    private static final int MAGIC = 0x54435453; // "TCTS"
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Writes the state right into {@code file}: a failure leaves it half-written, so it is written aside
+     * and moved over the saved one ({@link Converter}).
+     */
+    static void write(CountTable table, File file) throws IOException {
+        int valuesCount = table.valuesCount();
+
+        // cells grouped by value: the matrix itself knows no order
+        int[] rowStart = new int[valuesCount + 1];
+        for (int v = 0; v < valuesCount; v++) {
+            rowStart[v + 1] = rowStart[v] + table.filled(v);
+        }
+        int[] next = Arrays.copyOf(rowStart, valuesCount);
+        int[] dateIds = new int[rowStart[valuesCount]];
+        long[] counts = new long[dateIds.length];
+        table.forEachCell((valueId, dateId, count) -> {
+            int cell = next[valueId]++;
+            dateIds[cell] = dateId;
+            counts[cell] = count;
+        });
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, table.rollup() != null ? table.rollup().name() : "");
+            writeVarLong(out, table.datesCount());
+            for (int d = 0; d < table.datesCount(); d++) {
+                writeString(out, table.date(d));
+            }
+            writeVarLong(out, table.rowsCount());
+            writeVarLong(out, valuesCount);
+            for (int v = 0; v < valuesCount; v++) {
+                writeString(out, table.value(v));
+                writeVarLong(out, rowStart[v + 1] - rowStart[v]);
+                for (int cell = rowStart[v]; cell < rowStart[v + 1]; cell++) {
+                    writeVarLong(out, dateIds[cell]);
+                    writeVarLong(out, (counts[cell] << 1) ^ (counts[cell] >> 63));
+                }
+            }
+        }
+    }
+
+    public static CountTable load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a saved state: " + file.getPath());
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported saved state version " + version + ": " + file.getPath());
+            }
+
+            byte[] buf = new byte[256];
+            int length = readInt(in);
+            buf = readBytes(in, buf, length);
+            DateRollup rollup;
+            try {
+                rollup = length > 0 ? DateRollup.parse(new String(buf, 0, length, StandardCharsets.UTF_8)) : null;
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed saved state: unknown rollup in " + file.getPath());
+            }
+            int datesCount = readInt(in);
+            CountTable table = new CountTable(16, datesCount);
+            for (int d = 0; d < datesCount; d++) {
+                length = readInt(in);
+                buf = readBytes(in, buf, length);
+                if (table.dateId(buf, 0, length) != d) {
+                    throw new IOException("Malformed saved state: repeated date in " + file.getPath());
+                }
+            }
+            table.addRows(readVarLong(in));
+
+            int valuesCount = readInt(in);
+            for (int v = 0; v < valuesCount; v++) {
+                length = readInt(in);
+                buf = readBytes(in, buf, length);
+                int valueId = table.valueId(buf, 0, length);
+                int cells = readInt(in);
+                for (int i = 0; i < cells; i++) {
+                    int dateId = readInt(in);
+                    long zigzag = readVarLong(in);
+                    table.add(valueId, dateId, (zigzag >>> 1) ^ -(zigzag & 1));
+                }
+            }
+            table.rollUp(rollup);
+            return table;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in saved state");
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        long value = readVarLong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Malformed saved state: bad size " + value);
+        }
+        return (int) value;
+    }
+
+    private static byte[] readBytes(DataInputStream in, byte[] buf, int length) throws IOException {
+        if (buf.length < length) {
+            buf = Arrays.copyOf(buf, Math.max(length, buf.length * 2));
+        }
+        in.readFully(buf, 0, length);
+        return buf;
+    }
+}
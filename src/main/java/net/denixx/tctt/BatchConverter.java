@@ -0,0 +1,289 @@
+package net.denixx.tctt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts batches of files on a fixed pool of worker threads. Used by the console and by the drop window.
+ */
+public class BatchConverter implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchConverter.class);
+
+    private final ExecutorService pool;
+
+    public BatchConverter(int threads) {
+        this(threads, false);
+    }
+
+    /**
+     * @param daemon true for pools that must not keep the JVM alive (GUI)
+     */
+    public BatchConverter(int threads, boolean daemon) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, "tctt-convert-" + threadNumber.incrementAndGet());
+            t.setDaemon(daemon);
+            return t;
+        };
+        pool = Executors.newFixedThreadPool(threads, threadFactory);
+    }
+
+    public Batch submit(List<File> files, ConversionOptions options, BatchListener listener) {
+        Batch batch = new Batch(files.size(), listener);
+        for (int i = 0; i < files.size(); i++) {
+            FileTask task = new FileTask(batch, i, files.get(i), options);
+            batch.tasks.add(task);
+        }
+        if (files.isEmpty()) {
+            batch.finish();
+        }
+        for (FileTask task : batch.tasks) {
+            pool.execute(task);
+        }
+        return batch;
+    }
+
+    /**
+     * Interrupts running conversions (they remove their partial output) and drops the queued ones.
+     */
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Waits for the workers to stop after {@link #close()}.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Checks that the file can be converted at all, logging the reason when it can't.
+     */
+    public static boolean checkFile(File f) {
+        if (!f.exists()) {
+            LOGGER.error("No file at {}!", f.getPath());
+            return false;
+        }
+        if (!f.isFile()) {
+            LOGGER.error("This is not a file {}!", f.getPath());
+            return false;
+        }
+        if (!f.canRead()) {
+            LOGGER.error("File at {} is not readable! (permissions?)", f.getPath());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Expands a path with glob characters (like {@code data/*.csv} or {@code exports/**.csv}) into matching files,
+     * skipping results of earlier conversions; any other path is returned as is.
+     */
+    public static List<File> expand(String path) throws IOException {
+        String pattern = File.separatorChar == '\\' ? path.replace('\\', '/') : path;
+        int firstGlobChar = indexOfGlobChar(pattern);
+        if (firstGlobChar < 0) {
+            return Collections.singletonList(new File(path));
+        }
+
+        int baseEnd = pattern.lastIndexOf('/', firstGlobChar);
+        Path base = baseEnd < 0 ? Paths.get("") : Paths.get(pattern.substring(0, baseEnd + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(baseEnd + 1));
+        int depth = pattern.contains("**") ? Integer.MAX_VALUE : (int) pattern.substring(baseEnd + 1).chars()
+                .filter(c -> c == '/')
+                .count() + 1;
+
+        try (Stream<Path> paths = Files.walk(base.toAbsolutePath(), depth)) {
+            Path absoluteBase = base.toAbsolutePath();
+            return paths
+                    .filter(Files::isRegularFile)
+                    .filter(p -> matcher.matches(absoluteBase.relativize(p)))
+                    .filter(p -> !p.getFileName().toString().endsWith(Converter.EXTRACTED_SUFFIX)
+                            && !p.getFileName().toString().endsWith(Converter.EXTRACTED_SUFFIX + Converter.GZIP_SUFFIX)
+                            && !p.getFileName().toString().endsWith(Converter.BINARY_SUFFIX)
+                            && !p.getFileName().toString().endsWith(Converter.STATE_SUFFIX))
+                    .map(p -> base.resolve(absoluteBase.relativize(p)).toFile())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static int indexOfGlobChar(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static class Batch {
+        private final List<FileTask> tasks;
+        private final FileResult[] results;
+        private final AtomicInteger remaining;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final BatchListener listener;
+        private final long startNanos = System.nanoTime();
+        private volatile BatchSummary summary;
+
+        Batch(int size, BatchListener listener) {
+            this.tasks = new ArrayList<>(size);
+            this.results = new FileResult[size];
+            this.remaining = new AtomicInteger(size);
+            this.listener = listener;
+        }
+
+        /**
+         * Cancels files that are not converted yet; running conversions are interrupted
+         * and their partial output is removed.
+         */
+        public void cancel() {
+            for (FileTask task : tasks) {
+                task.cancel(true);
+            }
+        }
+
+        public boolean isDone() {
+            return finished.getCount() == 0;
+        }
+
+        public BatchSummary await() throws InterruptedException {
+            finished.await();
+            return summary;
+        }
+
+        public BatchSummary await(long timeout, TimeUnit unit) throws InterruptedException {
+            return finished.await(timeout, unit) ? summary : null;
+        }
+
+        void done(int index, FileResult result) {
+            results[index] = result;
+            listener.fileFinished(result);
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        void finish() {
+            List<FileResult> list = new ArrayList<>(results.length);
+            Collections.addAll(list, results);
+            summary = new BatchSummary(Collections.unmodifiableList(list),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            finished.countDown();
+            listener.batchFinished(summary);
+        }
+    }
+
+    private static class FileTask extends FutureTask<FileResult> {
+        private final Batch batch;
+        private final int index;
+        private final File file;
+
+        FileTask(Batch batch, int index, File file, ConversionOptions options) {
+            super(() -> convert(batch, file, options));
+            this.batch = batch;
+            this.index = index;
+            this.file = file;
+        }
+
+        @Override
+        protected void done() {
+            FileResult result;
+            if (isCancelled()) {
+                result = new FileResult(file, FileResult.Status.CANCELLED, 0, null, null, FileResult.Cache.OFF);
+            } else {
+                try {
+                    result = get();
+                } catch (Exception e) {
+                    result = new FileResult(file, FileResult.Status.FAILED, 0, e, null, FileResult.Cache.OFF);
+                }
+            }
+            batch.done(index, result);
+        }
+
+        private static FileResult convert(Batch batch, File f, ConversionOptions options) {
+            long start = System.nanoTime();
+            if (!checkFile(f)) {
+                return new FileResult(f, FileResult.Status.REJECTED, 0, null, null, FileResult.Cache.OFF);
+            }
+
+            batch.listener.fileStarted(f);
+            ResultCache cache = null;
+            String key = null;
+            if (ResultCache.isCacheable(options)) {
+                try {
+                    cache = ResultCache.of(options);
+                    key = cache != null ? cache.key(f, options) : null;
+                    if (cache != null && cache.restore(key, Converter.extractedFileFor(f, options))) {
+                        return new FileResult(f, FileResult.Status.CONVERTED,
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), null, null,
+                                FileResult.Cache.HIT);
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Result cache is not usable for {}, converting it without: {}",
+                            f.getPath(), e.toString());
+                    cache = null;
+                }
+            }
+
+            ConversionMetrics metrics = new ConversionMetrics(f);
+            try {
+                boolean converted = Converter.transpondTable(f, options,
+                        (bytesRead, bytesTotal) -> batch.listener.fileProgress(f, bytesRead, bytesTotal), metrics);
+                if (converted && cache != null) {
+                    store(cache, key, Converter.extractedFileFor(f, options));
+                }
+                return new FileResult(f,
+                        converted ? FileResult.Status.CONVERTED : FileResult.Status.REJECTED,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), null, metrics,
+                        cache != null ? FileResult.Cache.MISS : FileResult.Cache.OFF);
+            } catch (Exception e) {
+                if (e instanceof InterruptedIOException || e instanceof ClosedByInterruptException
+                        || Thread.currentThread().isInterrupted()) {
+                    // the output is moved into place only once complete: a previous one, or the history
+                    // being appended to, is still there, and the partial output has been removed
+                    LOGGER.info("Conversion of {} is cancelled", f.getPath());
+                    return new FileResult(f, FileResult.Status.CANCELLED,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), e, metrics, FileResult.Cache.OFF);
+                }
+                LOGGER.error("Conversion error for file {}!", f.getPath(), e);
+                return new FileResult(f, FileResult.Status.FAILED,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), e, metrics, FileResult.Cache.OFF);
+            }
+        }
+
+        private static void store(ResultCache cache, String key, File extractedFile) {
+            try {
+                cache.store(key, extractedFile);
+            } catch (IOException e) {
+                LOGGER.warn("Can't add {} to the result cache: {}", extractedFile.getPath(), e.toString());
+            }
+        }
+    }
+}
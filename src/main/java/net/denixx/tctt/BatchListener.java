@@ -0,0 +1,24 @@
+package net.denixx.tctt;
+
+import java.io.File;
+
+/**
+ * Callbacks of a {@link BatchConverter} batch. They come from worker threads,
+ * Swing code has to move them to the EDT itself.
+ */
+public interface BatchListener {
+    BatchListener NONE = new BatchListener() {
+    };
+
+    default void fileStarted(File f) {
+    }
+
+    default void fileProgress(File f, long bytesRead, long bytesTotal) {
+    }
+
+    default void fileFinished(FileResult result) {
+    }
+
+    default void batchFinished(BatchSummary summary) {
+    }
+}
@@ -0,0 +1,73 @@
+package net.denixx.tctt;
+
+import lombok.Value;
+
+import java.util.List;
+
+@Value
+public class BatchSummary {
+    List<FileResult> results;
+    /**
+     * Wall time of the whole batch.
+     */
+    long millis;
+
+    public int total() {
+        return results.size();
+    }
+
+    public int count(FileResult.Status status) {
+        int count = 0;
+        for (FileResult result : results) {
+            if (result.getStatus() == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int count(FileResult.Cache cache) {
+        int count = 0;
+        for (FileResult result : results) {
+            if (result.getCache() == cache) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long totalRows() {
+        long rows = 0;
+        for (FileResult result : results) {
+            rows += result.getMetrics() != null ? result.getMetrics().getRows() : 0;
+        }
+        return rows;
+    }
+
+    public long totalBytes() {
+        long bytes = 0;
+        for (FileResult result : results) {
+            bytes += result.getMetrics() != null ? result.getMetrics().getBytesRead() : 0;
+        }
+        return bytes;
+    }
+
+    public double rowsPerSecond() {
+        return millis > 0 ? totalRows() * 1000.0 / millis : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "files: " + total()
+                + ", converted: " + count(FileResult.Status.CONVERTED)
+                + ", rejected: " + count(FileResult.Status.REJECTED)
+                + ", failed: " + count(FileResult.Status.FAILED)
+                + ", cancelled: " + count(FileResult.Status.CANCELLED)
+                + (count(FileResult.Cache.OFF) < total()
+                ? ", cache hits: " + count(FileResult.Cache.HIT) + ", misses: " + count(FileResult.Cache.MISS)
+                : "")
+                + ", rows: " + totalRows()
+                + ", bytes: " + totalBytes()
+                + ", millis: " + millis;
+    }
+}
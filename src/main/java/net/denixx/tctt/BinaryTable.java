@@ -0,0 +1,504 @@
+package net.denixx.tctt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Binary twin of the CSV output, for consumers that load it again and again: {@link #write} stores
+ * the same dates, values, averages and counts, {@link #open} memory-maps such a file and reads any
+ * value, date or cell in place, without parsing.
+ * <p>
+ * Layout, little-endian, every section starting at a multiple of 8:
+ * <ul>
+ * <li>header: magic {@code TCTB}, version (int), bytes per count (1, 2, 4 or 8) and per row index (2 or 4),
+ * padding to 16 bytes;</li>
+ * <li>dates in output order: int offsets (datesCount + 1) into a UTF-8 blob, then the blob;</li>
+ * <li>values in output order: int offsets (valuesCount + 1) into a UTF-8 blob, then the blob;</li>
+ * <li>avgByAll and avgByNE of every value, doubles;</li>
+ * <li>cells by date column: int column starts (datesCount + 1), then the row (value) index of every cell,
+ * ascending within a column, then its count, signed;</li>
+ * <li>value index: open addressing slots (a power of two) with value indexes or -1, probed linearly from
+ * {@code mix(h) & (slots - 1)}, where {@code h = 31 * h + b} over the signed bytes of the value and
+ * {@code mix(h) = (h * 0x9E3779B9) ^ ((h * 0x9E3779B9) >>> 16)};</li>
+ * <li>footer of {@value #FOOTER_SIZE} bytes: dates, values, cells and index slots counts (longs), offsets
+ * of the ten sections above from date offsets to the index (longs), version and magic (ints).</li>
+ * </ul>
+ */
+public class BinaryTable {
+    private static final int MAGIC = 0x42544354; // "TCTB" little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int FOOTER_SIZE = 4 * 8 + 10 * 8 + 2 * 4;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int NO_VALUE = -1;
+
+    private final ByteBuffer buf;
+    private final int datesCount;
+    private final int valuesCount;
+    private final int cellsCount;
+    private final int indexSlots;
+    private final int countBytes;
+    private final int rowBytes;
+    private final int datesOffsets;
+    private final int datesBlob;
+    private final int valuesOffsets;
+    private final int valuesBlob;
+    private final int avgByAll;
+    private final int avgByNotEmpty;
+    private final int columnStarts;
+    private final int rows;
+    private final int counts;
+    private final int index;
+
+    private BinaryTable(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.capacity() < HEADER_SIZE + FOOTER_SIZE || buf.getInt(0) != MAGIC
+                || buf.getInt(buf.capacity() - 4) != MAGIC) {
+            throw new IOException("Not a binary table");
+        }
+        if (buf.getInt(4) != VERSION || buf.getInt(buf.capacity() - 8) != VERSION) {
+            throw new IOException("Binary table of an unknown version " + buf.getInt(4));
+        }
+        countBytes = buf.get(8);
+        rowBytes = buf.get(9);
+        int footer = buf.capacity() - FOOTER_SIZE;
+        datesCount = (int) buf.getLong(footer);
+        valuesCount = (int) buf.getLong(footer + 8);
+        cellsCount = (int) buf.getLong(footer + 16);
+        indexSlots = (int) buf.getLong(footer + 24);
+        datesOffsets = (int) buf.getLong(footer + 32);
+        datesBlob = (int) buf.getLong(footer + 40);
+        valuesOffsets = (int) buf.getLong(footer + 48);
+        valuesBlob = (int) buf.getLong(footer + 56);
+        avgByAll = (int) buf.getLong(footer + 64);
+        avgByNotEmpty = (int) buf.getLong(footer + 72);
+        columnStarts = (int) buf.getLong(footer + 80);
+        rows = (int) buf.getLong(footer + 88);
+        counts = (int) buf.getLong(footer + 96);
+        index = (int) buf.getLong(footer + 104);
+    }
+
+    /**
+     * Maps a written file; it stays mapped as long as the result is reachable.
+     */
+    public static BinaryTable open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Binary table " + file.getPath() + " is over 2 GB, it can't be mapped at once");
+            }
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new BinaryTable(buf.order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    public int datesCount() {
+        return datesCount;
+    }
+
+    public int valuesCount() {
+        return valuesCount;
+    }
+
+    public int cellsCount() {
+        return cellsCount;
+    }
+
+    /**
+     * @param date index in output (lexicographical) order
+     */
+    public String date(int date) {
+        return string(datesOffsets, datesBlob, date);
+    }
+
+    /**
+     * @param value index in output order (best avgByAll first)
+     */
+    public String value(int value) {
+        return string(valuesOffsets, valuesBlob, value);
+    }
+
+    public double avgByAll(int value) {
+        return buf.getDouble(avgByAll + value * 8);
+    }
+
+    public double avgByNotEmpty(int value) {
+        return buf.getDouble(avgByNotEmpty + value * 8);
+    }
+
+    /**
+     * @return index of the date, -1 if there is no such column
+     */
+    public int dateIndex(String date) {
+        int low = 0;
+        int high = datesCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = date(middle).compareTo(date);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the value, -1 if it is not in the table
+     */
+    public int valueIndex(String value) {
+        byte[] key = value.getBytes(StandardCharsets.UTF_8);
+        int mask = indexSlots - 1;
+        for (int slot = StringDictionary.hash(key, 0, key.length) & mask; ; slot = (slot + 1) & mask) {
+            int v = buf.getInt(index + slot * 4);
+            if (v == NO_VALUE) {
+                return -1;
+            }
+            if (keyEquals(valuesOffsets, valuesBlob, v, key)) {
+                return v;
+            }
+        }
+    }
+
+    public boolean contains(int value, int date) {
+        return cellOf(value, date) >= 0;
+    }
+
+    /**
+     * @return the count, 0 for an empty cell (see {@link #contains})
+     */
+    public long count(int value, int date) {
+        int cell = cellOf(value, date);
+        return cell >= 0 ? count(cell) : 0;
+    }
+
+    /**
+     * Visits the non-empty cells of a date column, by value index ascending.
+     */
+    public void forEachInDate(int date, CellConsumer consumer) {
+        int end = columnStart(date + 1);
+        for (int cell = columnStart(date); cell < end; cell++) {
+            consumer.accept(row(cell), date, count(cell));
+        }
+    }
+
+    /**
+     * Visits the non-empty cells of a value, by date index ascending.
+     */
+    public void forEachInValue(int value, CellConsumer consumer) {
+        for (int date = 0; date < datesCount; date++) {
+            int cell = cellOf(value, date);
+            if (cell >= 0) {
+                consumer.accept(value, date, count(cell));
+            }
+        }
+    }
+
+    private int cellOf(int value, int date) {
+        int low = columnStart(date);
+        int high = columnStart(date + 1) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int row = row(middle);
+            if (row < value) {
+                low = middle + 1;
+            } else if (row > value) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private int columnStart(int date) {
+        return buf.getInt(columnStarts + date * 4);
+    }
+
+    private int row(int cell) {
+        return rowBytes == 2 ? buf.getChar(rows + cell * 2) : buf.getInt(rows + cell * 4);
+    }
+
+    private long count(int cell) {
+        switch (countBytes) {
+            case 1:
+                return buf.get(counts + cell);
+            case 2:
+                return buf.getShort(counts + cell * 2);
+            case 4:
+                return buf.getInt(counts + cell * 4);
+            default:
+                return buf.getLong(counts + cell * 8);
+        }
+    }
+
+    private String string(int offsets, int blob, int i) {
+        int start = buf.getInt(offsets + i * 4);
+        int end = buf.getInt(offsets + i * 4 + 4);
+        byte[] bytes = new byte[end - start];
+        ByteBuffer view = buf.duplicate();
+        view.position(blob + start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean keyEquals(int offsets, int blob, int i, byte[] key) {
+        int start = buf.getInt(offsets + i * 4);
+        int end = buf.getInt(offsets + i * 4 + 4);
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int j = 0; j < key.length; j++) {
+            if (buf.get(blob + start + j) != key[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the given values and dates of the table, in the given orders. The stream is flushed, not closed.
+     */
+    public static void write(CountTable table, TransposedRows transposed, int[] sortedValueIds, int[] sortedDateIds,
+                             OutputStream out) throws IOException {
+        int datesCount = sortedDateIds.length;
+        int[] columnStarts = new int[datesCount + 1];
+        long min = 0;
+        long max = 0;
+        for (int valueId : sortedValueIds) {
+            for (int cell = transposed.rowStart(valueId); cell < transposed.rowEnd(valueId); cell++) {
+                columnStarts[transposed.dateRank(cell) + 1]++;
+                min = Math.min(min, transposed.count(cell));
+                max = Math.max(max, transposed.count(cell));
+            }
+        }
+        for (int d = 0; d < datesCount; d++) {
+            columnStarts[d + 1] += columnStarts[d];
+        }
+        int cellsCount = columnStarts[datesCount];
+
+        // columns filled value by value, so rows come ascending in every column
+        int[] rows = new int[cellsCount];
+        long[] counts = new long[cellsCount];
+        int[] cursor = Arrays.copyOf(columnStarts, datesCount);
+        for (int row = 0; row < sortedValueIds.length; row++) {
+            int valueId = sortedValueIds[row];
+            for (int cell = transposed.rowStart(valueId); cell < transposed.rowEnd(valueId); cell++) {
+                int i = cursor[transposed.dateRank(cell)]++;
+                rows[i] = row;
+                counts[i] = transposed.count(cell);
+            }
+        }
+
+        int countBytes = min >= Byte.MIN_VALUE && max <= Byte.MAX_VALUE ? 1
+                : min >= Short.MIN_VALUE && max <= Short.MAX_VALUE ? 2
+                : min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE ? 4
+                : 8;
+        int rowBytes = sortedValueIds.length <= Character.MAX_VALUE + 1 ? 2 : 4;
+
+        Output o = new Output(out);
+        o.putInt(MAGIC);
+        o.putInt(VERSION);
+        o.put(countBytes);
+        o.put(rowBytes);
+        o.align();
+
+        long[] sections = new long[10];
+        String[] dates = new String[datesCount];
+        for (int d = 0; d < datesCount; d++) {
+            dates[d] = table.date(sortedDateIds[d]);
+        }
+        writeStrings(o, dates, sections, 0);
+
+        String[] values = new String[sortedValueIds.length];
+        for (int row = 0; row < values.length; row++) {
+            values[row] = table.value(sortedValueIds[row]);
+        }
+        byte[][] valueBytes = writeStrings(o, values, sections, 2);
+
+        sections[4] = o.position();
+        for (int valueId : sortedValueIds) {
+            o.putDouble(table.avgByAll(valueId));
+        }
+        sections[5] = o.position();
+        for (int valueId : sortedValueIds) {
+            o.putDouble(table.avgByNotEmpty(valueId));
+        }
+
+        sections[6] = o.position();
+        for (int start : columnStarts) {
+            o.putInt(start);
+        }
+        o.align();
+        sections[7] = o.position();
+        for (int row : rows) {
+            if (rowBytes == 2) {
+                o.putShort(row);
+            } else {
+                o.putInt(row);
+            }
+        }
+        o.align();
+        sections[8] = o.position();
+        for (long count : counts) {
+            o.putCount(count, countBytes);
+        }
+        o.align();
+
+        int[] slots = new int[StringDictionary.tableSizeFor(values.length)];
+        Arrays.fill(slots, NO_VALUE);
+        int mask = slots.length - 1;
+        for (int row = 0; row < valueBytes.length; row++) {
+            int slot = StringDictionary.hash(valueBytes[row], 0, valueBytes[row].length) & mask;
+            while (slots[slot] != NO_VALUE) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = row;
+        }
+        sections[9] = o.position();
+        for (int slot : slots) {
+            o.putInt(slot);
+        }
+        o.align();
+
+        o.putLong(datesCount);
+        o.putLong(values.length);
+        o.putLong(cellsCount);
+        o.putLong(slots.length);
+        for (long section : sections) {
+            o.putLong(section);
+        }
+        o.putInt(VERSION);
+        o.putInt(MAGIC);
+        o.flush();
+    }
+
+    /**
+     * Offsets and blob of the strings, their positions go to sections[at] and sections[at + 1].
+     */
+    private static byte[][] writeStrings(Output o, String[] strings, long[] sections, int at) throws IOException {
+        byte[][] bytes = new byte[strings.length][];
+        int offset = 0;
+        sections[at] = o.position();
+        o.putInt(0);
+        for (int i = 0; i < strings.length; i++) {
+            bytes[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+            offset = Math.addExact(offset, bytes[i].length);
+            o.putInt(offset);
+        }
+        o.align();
+        sections[at + 1] = o.position();
+        for (byte[] b : bytes) {
+            o.put(b);
+        }
+        o.align();
+        return bytes;
+    }
+
+    @FunctionalInterface
+    public interface CellConsumer {
+        /**
+         * @param value index of the value in output order
+         * @param date  index of the date in output order
+         */
+        void accept(int value, int date, long count);
+    }
+
+    /**
+     * Little-endian writes through a buffer, keeping count of the position.
+     */
+    private static class Output {
+        private final OutputStream out;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long flushed;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        long position() {
+            return flushed + buf.position();
+        }
+
+        void put(int b) throws IOException {
+            ensure(1);
+            buf.put((byte) b);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            int off = 0;
+            while (off < bytes.length) {
+                ensure(1);
+                int n = Math.min(buf.remaining(), bytes.length - off);
+                buf.put(bytes, off, n);
+                off += n;
+            }
+        }
+
+        void putShort(int v) throws IOException {
+            ensure(2);
+            buf.putShort((short) v);
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4);
+            buf.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8);
+            buf.putLong(v);
+        }
+
+        void putDouble(double v) throws IOException {
+            ensure(8);
+            buf.putDouble(v);
+        }
+
+        void putCount(long v, int bytes) throws IOException {
+            switch (bytes) {
+                case 1:
+                    put((int) v);
+                    break;
+                case 2:
+                    putShort((int) v);
+                    break;
+                case 4:
+                    putInt((int) v);
+                    break;
+                default:
+                    putLong(v);
+            }
+        }
+
+        void align() throws IOException {
+            while ((position() & 7) != 0) {
+                put(0);
+            }
+        }
+
+        void flush() throws IOException {
+            out.write(buf.array(), 0, buf.position());
+            flushed += buf.position();
+            buf.clear();
+            out.flush();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buf.remaining() < bytes) {
+                out.write(buf.array(), 0, buf.position());
+                flushed += buf.position();
+                buf.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package net.denixx.tctt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Parallel ingest of one file: the file is cut into newline-aligned byte ranges,
+ * every range is parsed into its own {@link CountTable} on a fork-join worker,
+ * and the partial tables are merged in file order.
+ * <p>
+ * Ranges are cut at any line break, also one inside a quoted field. A range cut that way doesn't parse
+ * (its last quoted field never ends), and then the whole file is read again in one thread; any other error
+ * fails the ingest right away. An interrupted ingest stops its workers.
+ */
+public class ChunkedFileIngest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedFileIngest.class);
+
+    private static final long MIN_CHUNK_SIZE = 1 << 16;
+    private static final long MAX_CHUNK_SIZE = 1 << 28;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Switches the metrics to the MERGE phase once all chunks are parsed.
+     *
+     * @param rollup dates rollup, null for none
+     * @param plan   sizes the table of the first chunk, which the others are merged into; null for none
+     */
+    public static CountTable ingest(File f, int parallelism, DateRollup rollup, IngestPlan plan,
+                                    ProgressListener progress, ConversionMetrics metrics) throws IOException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            List<long[]> ranges = split(channel, parallelism);
+            LOGGER.info("Reading {} in {} chunks with {} threads", f.getPath(), ranges.size(), parallelism);
+
+            long size = channel.size();
+            AtomicLong bytesRead = new AtomicLong();
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                List<ForkJoinTask<CountTable>> tasks = new ArrayList<>(ranges.size());
+                for (int i = 0; i < ranges.size(); i++) {
+                    long[] range = ranges.get(i);
+                    boolean withHeader = i == 0;
+                    CountTable table = i == 0 && plan != null ? plan.newTable() : new CountTable();
+                    tasks.add(pool.submit(() -> readRange(channel, range[0], range[1], withHeader, table, rollup,
+                            in -> new ProgressInputStream(in, bytesRead, size, progress))));
+                }
+
+                List<CountTable> tables = new ArrayList<>(tasks.size());
+                try {
+                    for (ForkJoinTask<CountTable> task : tasks) {
+                        tables.add(task.get());
+                    }
+                } catch (InterruptedException e) {
+                    cancel(tasks, pool);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Reading of " + f.getPath() + " is cancelled");
+                } catch (ExecutionException e) {
+                    cancel(tasks, pool);
+                    Throwable cause = e.getCause();
+                    if (cause.getCause() != null && cause.getCause().getClass() == cause.getClass()) {
+                        // fork-join rethrows a copy of a worker's exception, caused by the original
+                        cause = cause.getCause();
+                    }
+                    // a chunk but the last one may end in a quoted line break; if the file is broken there,
+                    // it fails the same way
+                    if (cause instanceof ThreeColumnReader.UnclosedQuoteException
+                            && tables.size() < tasks.size() - 1) {
+                        LOGGER.info("A chunk of {} ends inside a quoted field, reading the file in one thread",
+                                f.getPath());
+                        return readWhole(f, plan != null ? plan.newTable() : new CountTable(), rollup, progress);
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IOException(cause);
+                }
+
+                metrics.startPhase(ConversionMetrics.Phase.MERGE);
+                CountTable table = tables.get(0);
+                for (int i = 1; i < tables.size(); i++) {
+                    table.merge(tables.get(i));
+                    tables.set(i, null);
+                }
+                return table;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private static void cancel(List<ForkJoinTask<CountTable>> tasks, ForkJoinPool pool) {
+        for (ForkJoinTask<CountTable> task : tasks) {
+            task.cancel(true);
+        }
+        // workers stop at their next read, the reader checks for interrupts
+        pool.shutdownNow();
+    }
+
+    private static CountTable readWhole(File f, CountTable table, DateRollup rollup, ProgressListener progress)
+            throws IOException {
+        table.rollUp(rollup);
+        try (InputStream in = new ProgressInputStream(new FileInputStream(f), f.length(), progress)) {
+            ThreeColumnReader.read(in, true, table);
+        }
+        return table;
+    }
+
+    static List<long[]> split(FileChannel channel, int parallelism) throws IOException {
+        long size = channel.size();
+        long chunkSize = Math.min(MAX_CHUNK_SIZE,
+                Math.max(MIN_CHUNK_SIZE, size / ((long) parallelism * CHUNKS_PER_THREAD) + 1));
+
+        List<long[]> ranges = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+            // move the end right after the next line break, so no row is cut in two
+            while (end < size) {
+                probe.clear();
+                int read = channel.read(probe, end);
+                int newline = -1;
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline >= 0) {
+                    end += newline + 1;
+                    break;
+                }
+                end += Math.max(read, 0);
+            }
+            ranges.add(new long[]{start, Math.min(end, size)});
+            start = end;
+        }
+        if (ranges.isEmpty()) {
+            ranges.add(new long[]{0, 0});
+        }
+        return ranges;
+    }
+
+    private static CountTable readRange(FileChannel channel, long start, long end, boolean withHeader,
+                                        CountTable table, DateRollup rollup, UnaryOperator<InputStream> wrapper) {
+        table.rollUp(rollup);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            ThreeColumnReader.read(wrapper.apply(new ByteBufferInputStream(buffer)), withHeader, table);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return table;
+    }
+
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package net.denixx.tctt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing, throughput and memory figures of one conversion.
+ * The converting thread fills them in phase by phase; while it runs they are visible over JMX,
+ * at the end they are logged as one JSON line.
+ * Heap and GC figures are JVM-wide, so with concurrent conversions they are upper estimates.
+ * The peak heap is the peak usage of the heap pools, reset when the first phase starts
+ * (so a conversion starting meanwhile may hide an earlier part of the peak from another one).
+ */
+public class ConversionMetrics implements ConversionMetricsMXBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConversionMetrics.class);
+
+    public static final String CONVERTED = "converted";
+    public static final String REJECTED = "rejected";
+    public static final String FAILED = "failed";
+    public static final String CANCELLED = "cancelled";
+
+    private static final AtomicLong IDS = new AtomicLong();
+
+    /**
+     * Starting the platform MBean server takes longer than converting a small file,
+     * so only conversions still running after this delay are registered.
+     */
+    private static final long REGISTER_DELAY_MILLIS = 500;
+
+    public enum Phase {
+        /** MIME type check */
+        DETECT,
+        /** pre-pass estimating the size of the table */
+        ESTIMATE,
+        /** approximate mode: first pass, finding candidate values */
+        SKETCH,
+        /** loading the saved state to append to */
+        LOAD,
+        /** parsing rows into the table (one streaming pass, so aggregation is here too) */
+        READ,
+        /** merging tables of parallel chunks or sorted runs of the external mode */
+        MERGE,
+        /** external mode: spilling rows into partitions */
+        PARTITION,
+        /** external mode: aggregating partitions into sorted runs */
+        AGGREGATE,
+        /** saving the state for later appends */
+        SAVE,
+        SORT,
+        TRANSPOSE,
+        WRITE
+    }
+
+    private final String source;
+    private final long id = IDS.incrementAndGet();
+    private final long startNanos = System.nanoTime();
+    private final long gcMillisAtStart = totalGcMillis();
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    private volatile Phase phase;
+    private long phaseStartNanos;
+    private boolean started;
+    private volatile long endNanos;
+    private volatile long gcMillis = -1;
+    private volatile long peakHeapBytes;
+    private volatile String result;
+
+    private volatile long bytesRead;
+    private volatile long bytesTotal;
+    private volatile long rows;
+    private volatile int distinctValues;
+    private volatile int distinctDates;
+    private volatile long cells;
+    private volatile long tableBytes;
+
+    private ObjectName objectName;
+    private ScheduledFuture<?> registration;
+
+    public ConversionMetrics(File file) {
+        this(file.getPath(), file.length());
+    }
+
+    /**
+     * @param source    what is converted, for JMX and the log
+     * @param bytesTotal input size, -1 if unknown
+     */
+    public ConversionMetrics(String source, long bytesTotal) {
+        this.source = source;
+        this.bytesTotal = bytesTotal;
+    }
+
+    /**
+     * Ends the current phase, if any, and starts the next one.
+     */
+    public synchronized void startPhase(Phase next) {
+        long now = System.nanoTime();
+        if (!started) {
+            started = true;
+            resetHeapPeak();
+        }
+        endPhase(now);
+        phase = next;
+        phaseStartNanos = now;
+    }
+
+    /**
+     * Ends the last phase, removes the MBean and logs the JSON line.
+     *
+     * @param result one of {@link #CONVERTED}, {@link #REJECTED}, {@link #FAILED}, {@link #CANCELLED}
+     */
+    public void finish(String result) {
+        synchronized (this) {
+            long now = System.nanoTime();
+            endPhase(now);
+            phase = null;
+            endNanos = now;
+            gcMillis = totalGcMillis() - gcMillisAtStart;
+            this.result = result;
+        }
+        unregister();
+        LOGGER.info("{}", toJson());
+    }
+
+    private void endPhase(long now) {
+        if (phase != null) {
+            phaseNanos[phase.ordinal()] += now - phaseStartNanos;
+        }
+        peakHeapBytes = Math.max(peakHeapBytes, heapPeakBytes());
+    }
+
+    public ProgressListener track(ProgressListener progress) {
+        return (read, total) -> {
+            bytesRead = read;
+            progress.progress(read, total);
+        };
+    }
+
+    public void bytesRead(long bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    public void rows(long rows) {
+        this.rows = rows;
+    }
+
+    public void distinct(int values, int dates, long cells) {
+        this.distinctValues = values;
+        this.distinctDates = dates;
+        this.cells = cells;
+    }
+
+    public void tableBytes(long tableBytes) {
+        this.tableBytes = Math.max(this.tableBytes, tableBytes);
+    }
+
+    synchronized void register() {
+        registration = Registrar.EXECUTOR.schedule(this::registerNow, REGISTER_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void registerNow() {
+        try {
+            // the first call starts the server, the converting thread shouldn't wait for that
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            synchronized (this) {
+                if (result != null || registration == null) {
+                    return;
+                }
+                registration = null;
+                objectName = new ObjectName("net.denixx.tctt:type=Conversion,id=" + id
+                        + ",file=" + ObjectName.quote(new File(source).getName()));
+                server.registerMBean(this, objectName);
+            }
+        } catch (JMException | SecurityException e) {
+            LOGGER.debug("Can't register metrics of {} in JMX", source, e);
+            synchronized (this) {
+                objectName = null;
+            }
+        }
+    }
+
+    synchronized void unregister() {
+        if (registration != null) {
+            registration.cancel(false);
+            registration = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.debug("Can't unregister {}", objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * @return how the conversion ended, null while it runs
+     */
+    public String getResult() {
+        return result;
+    }
+
+    @Override
+    public String getFile() {
+        return source;
+    }
+
+    @Override
+    public String getPhase() {
+        Phase current = phase;
+        return current != null ? current.name() : endNanos != 0 ? "FINISHED" : "STARTING";
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos);
+    }
+
+    @Override
+    public synchronized Map<String, Long> getPhaseMillis() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        for (Phase p : Phase.values()) {
+            long nanos = phaseNanos[p.ordinal()] + (p == phase ? System.nanoTime() - phaseStartNanos : 0);
+            if (nanos > 0) {
+                millis.put(p.name().toLowerCase(Locale.ROOT), TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+        }
+        return millis;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    @Override
+    public long getRows() {
+        return rows;
+    }
+
+    @Override
+    public int getDistinctValues() {
+        return distinctValues;
+    }
+
+    @Override
+    public int getDistinctDates() {
+        return distinctDates;
+    }
+
+    @Override
+    public long getCells() {
+        return cells;
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        return perSecond(rows);
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return perSecond(bytesRead);
+    }
+
+    @Override
+    public long getTableBytes() {
+        return tableBytes;
+    }
+
+    @Override
+    public long getPeakHeapBytes() {
+        // while a phase runs, its peak so far
+        return phase != null ? Math.max(peakHeapBytes, heapPeakBytes()) : peakHeapBytes;
+    }
+
+    /**
+     * @return GC time during the conversion, or so far while it runs
+     */
+    @Override
+    public long getGcMillis() {
+        return gcMillis >= 0 ? gcMillis : totalGcMillis() - gcMillisAtStart;
+    }
+
+    /**
+     * One line of JSON with all the figures.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"file\":");
+        appendJsonString(sb, source);
+        sb.append(",\"result\":");
+        appendJsonString(sb, result != null ? result : "running");
+        sb.append(",\"elapsedMillis\":").append(getElapsedMillis())
+                .append(",\"phaseMillis\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> e : getPhaseMillis().entrySet()) {
+            sb.append(first ? "" : ",").append('"').append(e.getKey()).append("\":").append(e.getValue());
+            first = false;
+        }
+        sb.append("},\"bytes\":").append(bytesRead)
+                .append(",\"rows\":").append(rows)
+                .append(",\"rowsPerSecond\":").append(Math.round(getRowsPerSecond()))
+                .append(",\"bytesPerSecond\":").append(Math.round(getBytesPerSecond()))
+                .append(",\"distinctValues\":").append(distinctValues)
+                .append(",\"distinctDates\":").append(distinctDates)
+                .append(",\"cells\":").append(cells)
+                .append(",\"tableBytes\":").append(tableBytes)
+                .append(",\"peakHeapBytes\":").append(peakHeapBytes)
+                .append(",\"gcMillis\":").append(getGcMillis())
+                .append('}');
+        return sb.toString();
+    }
+
+    private double perSecond(long amount) {
+        long nanos = (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+        return nanos > 0 ? amount * 1e9 / nanos : 0;
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static class Registrar {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tctt-metrics-jmx");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return sum of the peaks of the heap pools, which is at least the peak of the whole heap
+     */
+    private static long heapPeakBytes() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                bytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return bytes;
+    }
+
+    private static void resetHeapPeak() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long totalGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,38 @@
+package net.denixx.tctt;
+
+import java.util.Map;
+
+/**
+ * JMX view of a running conversion, registered as {@code net.denixx.tctt:type=Conversion,...}.
+ */
+public interface ConversionMetricsMXBean {
+    String getFile();
+
+    String getPhase();
+
+    long getElapsedMillis();
+
+    Map<String, Long> getPhaseMillis();
+
+    long getBytesRead();
+
+    long getBytesTotal();
+
+    long getRows();
+
+    int getDistinctValues();
+
+    int getDistinctDates();
+
+    long getCells();
+
+    double getRowsPerSecond();
+
+    double getBytesPerSecond();
+
+    long getTableBytes();
+
+    long getPeakHeapBytes();
+
+    long getGcMillis();
+}
@@ -0,0 +1,109 @@
+package net.denixx.tctt;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.io.File;
+
+@Value
+@Builder(toBuilder = true)
+public class ConversionOptions {
+    public static final ConversionOptions DEFAULTS = ConversionOptions.builder().build();
+
+    /**
+     * Number of threads parsing one input file; 1 means plain sequential reading.
+     */
+    @Builder.Default
+    int parallelism = 1;
+
+    /**
+     * Write only this many best values (by avgByAll); 0 writes all of them.
+     */
+    @Builder.Default
+    int topN = 0;
+
+    /**
+     * Write only values with avgByAll at least this big.
+     */
+    @Builder.Default
+    double minAvgByAll = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Heap budget in bytes for the external (spill-to-disk) mode; 0 keeps the whole table in memory.
+     */
+    @Builder.Default
+    long memoryBudget = 0;
+
+    /**
+     * Where spill files of the external mode go; null means java.io.tmpdir.
+     */
+    File spillDirectory;
+
+    /**
+     * Also save the aggregated table next to the output ({@link Converter#stateFileFor}),
+     * so later rows can be added with {@link #appendTo}.
+     */
+    boolean saveState;
+
+    /**
+     * Treat the input as new rows for this earlier converted file: its saved state is loaded,
+     * the rows are added, and its output and state are rewritten. Null converts the input on its own.
+     */
+    File appendTo;
+
+    /**
+     * Gzip the output ({@code <name>_extracted.csv.gz}); gzipped inputs are recognized without any option.
+     */
+    boolean gzipOutput;
+
+    /**
+     * Sum the columns of every day, week or month into one ({@link DateRollup}); null keeps the markers as they are.
+     */
+    DateRollup rollup;
+
+    /**
+     * Approximate mode for too many distinct values to hold: write (at most) this many best values,
+     * found in fixed memory by {@link HeavyHitters}; 0 counts all values exactly.
+     */
+    @Builder.Default
+    int approximateTop = 0;
+
+    /**
+     * Candidate counters of the approximate mode; 0 picks {@link HeavyHitters#defaultCounters}.
+     */
+    @Builder.Default
+    int sketchCounters = 0;
+
+    /**
+     * Size the table by a pre-pass over the input ({@link IngestPlan}), and turn down inputs whose table
+     * won't fit into the heap. Only for files converted in memory and exactly.
+     */
+    boolean estimate;
+
+    /**
+     * How much of the input the pre-pass reads, the rest is extrapolated; 0 reads it all.
+     * Gzipped inputs are always read whole.
+     */
+    @Builder.Default
+    long estimateSampleBytes = 0;
+
+    /**
+     * Write {@link BinaryTable}s ({@code <name>_extracted.tctb}) instead of CSV.
+     */
+    boolean binaryOutput;
+
+    /**
+     * Directory of the {@link ResultCache}; null converts every file anew.
+     */
+    File cacheDirectory;
+
+    /**
+     * Size limit of the cache directory, the least recently used outputs are removed beyond it.
+     */
+    @Builder.Default
+    long cacheMaxBytes = 1L << 30;
+
+    public boolean isFiltered() {
+        return topN > 0 || minAvgByAll != Double.NEGATIVE_INFINITY;
+    }
+}
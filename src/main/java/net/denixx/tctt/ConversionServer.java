@@ -0,0 +1,392 @@
+package net.denixx.tctt;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Conversions over HTTP on the JDK's built-in server: {@code POST /transpose} with the three-column table
+ * as the body (gzipped or not) answers with the transposed CSV, streamed as it is written.
+ * <p>
+ * Query parameters {@code top}, {@code minAvg} and {@code rollup} (day, week, month or none) override the server's options per request;
+ * {@code Accept-Encoding: gzip} gets a gzipped answer. Requests over the concurrency limit get 503
+ * at once, bodies over the size limit 413, malformed tables 400.
+ * The answer carries the figures of the conversion so far: {@code Server-Timing} with the read, sort and
+ * transpose phases, rows and distinct values and dates.
+ */
+public class ConversionServer implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConversionServer.class);
+
+    public static final String PATH = "/transpose";
+
+    private static final String CSV_CONTENT_TYPE = "text/csv; charset=utf-8";
+    private static final String GZIP = "gzip";
+    private static final int GZIP_BUFFER = 1 << 16;
+    private static final int RETRY_AFTER_SECONDS = 1;
+    private static final int STOP_DELAY_SECONDS = 1;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConversionOptions options;
+    private final Semaphore slots;
+    private final long maxBodyBytes;
+
+    /**
+     * @param maxConcurrent conversions running at the same time, more are refused
+     * @param maxBodyBytes  biggest accepted request body
+     * @param executor      runs the requests; see {@link #defaultExecutor()}
+     */
+    public ConversionServer(InetSocketAddress address, ConversionOptions options, int maxConcurrent,
+                            long maxBodyBytes, ExecutorService executor) throws IOException {
+        this.options = options;
+        this.slots = new Semaphore(maxConcurrent);
+        this.maxBodyBytes = maxBodyBytes;
+        this.executor = executor;
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext(PATH, this::handle);
+    }
+
+    /**
+     * A thread per request: virtual when the JDK has them (21+), otherwise pooled daemon threads.
+     * The concurrency limit is kept by the server, so requests over it are refused rather than queued.
+     */
+    public static ExecutorService defaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            ThreadFactory threadFactory = r -> {
+                Thread t = new Thread(r, "tctt-http-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+            return Executors.newCachedThreadPool(threadFactory);
+        }
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.info("Serving conversions at http://{}:{}{}", server.getAddress().getHostString(),
+                server.getAddress().getPort(), PATH);
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops taking requests, gives the running ones a moment to finish, then stops the executor.
+     */
+    @Override
+    public void close() {
+        server.stop(STOP_DELAY_SECONDS);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, 405, "POST the table to " + PATH);
+                return;
+            }
+            long contentLength = contentLength(exchange.getRequestHeaders());
+            if (contentLength > maxBodyBytes) {
+                sendError(exchange, 413, "The table is bigger than " + maxBodyBytes + " bytes");
+                return;
+            }
+            ConversionOptions requestOptions;
+            try {
+                requestOptions = requestOptions(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+            if (!slots.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+                sendError(exchange, 503, "Too many conversions at once, retry later");
+                return;
+            }
+            try {
+                convert(exchange, requestOptions, contentLength);
+            } finally {
+                slots.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void convert(HttpExchange exchange, ConversionOptions requestOptions, long contentLength)
+            throws IOException {
+        String source = "http://" + exchange.getRemoteAddress().getHostString();
+        ConversionMetrics metrics = new ConversionMetrics(source, contentLength);
+        boolean gzipOutput = acceptsGzip(exchange.getRequestHeaders());
+        ResponseStream response = new ResponseStream(exchange, metrics, gzipOutput);
+        String result = ConversionMetrics.FAILED;
+        metrics.register();
+        try {
+            InputStream body = new BufferedInputStream(new LimitedInputStream(exchange.getRequestBody(), maxBodyBytes));
+            InputStream counted = new ProgressInputStream(body, contentLength, metrics.track(ProgressListener.NONE));
+            boolean gzip = GzipInput.isGzip(body);
+            try (InputStream unpacked = gzip ? GzipInput.open(counted) : null) {
+                metrics.startPhase(ConversionMetrics.Phase.READ);
+                CountTable table = Converter.aggregate(unpacked != null ? unpacked : counted,
+                        requestOptions.getRollup());
+                Converter.aggregated(table, metrics);
+                Converter.write(table, requestOptions, response, metrics);
+            }
+            response.finish();
+            result = ConversionMetrics.CONVERTED;
+        } catch (BodyTooLargeException e) {
+            result = ConversionMetrics.REJECTED;
+            response.sendErrorIfPossible(413, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // the reader's validation errors
+            result = ConversionMetrics.REJECTED;
+            LOGGER.info("Bad table from {}: {}", source, e.getMessage());
+            response.sendErrorIfPossible(400, e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.error("Conversion for {} failed", source, e);
+            response.sendErrorIfPossible(500, "Conversion failed, see the server log");
+        } catch (IOException e) {
+            LOGGER.info("Conversion for {} is broken off: {}", source, e.toString());
+        } finally {
+            metrics.finish(result);
+        }
+    }
+
+    private ConversionOptions requestOptions(String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return options;
+        }
+        ConversionOptions.ConversionOptionsBuilder builder = options.toBuilder();
+        for (String parameter : rawQuery.split("&")) {
+            int eq = parameter.indexOf('=');
+            String name = decode(eq < 0 ? parameter : parameter.substring(0, eq));
+            String value = eq < 0 ? "" : decode(parameter.substring(eq + 1));
+            try {
+                if ("top".equals(name)) {
+                    int top = Integer.parseInt(value);
+                    if (top < 0) {
+                        throw new IllegalArgumentException("top can't be negative");
+                    }
+                    builder.topN(top);
+                } else if ("minAvg".equals(name)) {
+                    builder.minAvgByAll(Double.parseDouble(value.replace(',', '.')));
+                } else if ("rollup".equals(name)) {
+                    builder.rollup(rollup(value));
+                } else {
+                    throw new IllegalArgumentException("Unknown parameter " + name
+                            + ", there are top, minAvg and rollup");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Parameter " + name + " needs a number, got " + value);
+            }
+        }
+        return builder.build();
+    }
+
+    private static DateRollup rollup(String value) {
+        if ("none".equalsIgnoreCase(value)) {
+            return null;
+        }
+        try {
+            return DateRollup.parse(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Parameter rollup needs day, week, month or none, got " + value);
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long contentLength(Headers headers) {
+        String contentLength = headers.getFirst("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean acceptsGzip(Headers headers) {
+        String acceptEncoding = headers.getFirst("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains(GZIP);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Response body that sends the headers on the first write, when reading and sorting are over,
+     * so they can carry the timings of those phases.
+     */
+    private static class ResponseStream extends FilterOutputStream {
+        private final HttpExchange exchange;
+        private final ConversionMetrics metrics;
+        private final boolean gzip;
+        private boolean started;
+
+        ResponseStream(HttpExchange exchange, ConversionMetrics metrics, boolean gzip) {
+            super(null);
+            this.exchange = exchange;
+            this.metrics = metrics;
+            this.gzip = gzip;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            start();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            start();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            start();
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            // finished or abandoned by the exchange
+        }
+
+        void finish() throws IOException {
+            start();
+            if (out instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) out).finish();
+            }
+            out.flush();
+        }
+
+        void sendErrorIfPossible(int status, String message) throws IOException {
+            if (!started) {
+                started = true;
+                sendError(exchange, status, message);
+            }
+        }
+
+        private void start() throws IOException {
+            if (started) {
+                return;
+            }
+            started = true;
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", CSV_CONTENT_TYPE);
+            if (gzip) {
+                headers.set("Content-Encoding", GZIP);
+            }
+            headers.set("Server-Timing", serverTiming(metrics.getPhaseMillis()));
+            headers.set("X-Rows", Long.toString(metrics.getRows()));
+            headers.set("X-Distinct-Values", Integer.toString(metrics.getDistinctValues()));
+            headers.set("X-Distinct-Dates", Integer.toString(metrics.getDistinctDates()));
+            exchange.sendResponseHeaders(200, 0);
+            out = gzip ? new GZIPOutputStream(exchange.getResponseBody(), GZIP_BUFFER) : exchange.getResponseBody();
+        }
+
+        private static String serverTiming(Map<String, Long> phaseMillis) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Long> phase : phaseMillis.entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(phase.getKey()).append(";dur=").append(phase.getValue());
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BodyTooLargeException(long limit) {
+            super("The table is bigger than " + limit + " bytes");
+        }
+    }
+
+    /**
+     * Fails a body that goes over the limit (chunked bodies don't tell their size in advance).
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long read;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(long n) throws BodyTooLargeException {
+            read += n;
+            if (read > limit) {
+                throw new BodyTooLargeException(limit);
+            }
+        }
+    }
+}
@@ -1,302 +1,563 @@
 package net.denixx.tctt;
 
-import lombok.Value;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVPrinter;
-import org.apache.commons.csv.CSVRecord;
-import org.apache.tika.Tika;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.nio.charset.StandardCharsets;
-import java.text.NumberFormat;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class Converter {
     private static final Logger LOGGER = LoggerFactory.getLogger(Converter.class);
 
     public static final String CONVERTER_NAME = "Транспонирование 3-колоночных CSV";
 
-    static private final NumberFormat nf = NumberFormat.getNumberInstance();
-    static {
-        nf.setMinimumFractionDigits(9);
-        nf.setGroupingUsed(false);
+    public static final String MIME_CSV = "text/csv";
+
+    public static final String EXTRACTED_SUFFIX = "_extracted.csv";
+
+    public static final String BINARY_SUFFIX = "_extracted.tctb";
+
+    public static final String STATE_SUFFIX = "_extracted.state";
+
+    public static final String GZIP_SUFFIX = ".gz";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String INPUT_EXTENSIONS = "(\\.csv?)?(\\.gz)?$";
+
+    private static final int GZIP_BUFFER = 1 << 16;
+
+    private static final String STREAM_SOURCE = "<stream>";
+
+    public static boolean transpondTable(File f) throws IOException {
+        return transpondTable(f, ConversionOptions.DEFAULTS);
     }
 
-    public static final String MIME_CSV = "text/csv";
+    public static boolean transpondTable(File f, ConversionOptions options) throws IOException {
+        return transpondTable(f, options, ProgressListener.NONE);
+    }
 
-    public static void transpondTable(File f) throws IOException {
-        {
-            String mimeType;
+    /**
+     * @return false if the file was rejected (the reason is logged), true when the output was written
+     */
+    public static boolean transpondTable(File f, ConversionOptions options, ProgressListener progress)
+            throws IOException {
+        return transpondTable(f, options, progress, new ConversionMetrics(f));
+    }
 
-            Tika tika = new Tika();
+    /**
+     * Same as {@link #transpondTable(File, ConversionOptions, ProgressListener)}, filling in the given metrics;
+     * they are visible over JMX while the conversion runs and logged as a JSON line at the end.
+     */
+    public static boolean transpondTable(File f, ConversionOptions options, ProgressListener progress,
+                                         ConversionMetrics metrics) throws IOException {
+        return tracked(metrics, () -> transpond(f, options, metrics.track(progress), metrics));
+    }
 
-            try {
-                mimeType = tika.detect(f);
-            } catch (IOException e) {
-                LOGGER.error("File at {} is not readable!", f.getPath(), e);
-                return;
+    /**
+     * Transposes rows read from {@code in} into CSV written to {@code out}, with no files involved
+     * (unless {@link ConversionOptions#getMemoryBudget()} asks for the external mode, which spills to disk).
+     * There is no MIME check, rows are parsed in one thread, and states can't be saved or appended to.
+     * Gzipped input is recognized by its magic bytes and unpacked on a separate thread;
+     * the output is gzipped if {@link ConversionOptions#isGzipOutput()}.
+     * Neither stream is closed.
+     */
+    public static void transpond(InputStream in, OutputStream out, ConversionOptions options) throws IOException {
+        if (options.isSaveState() || options.getAppendTo() != null) {
+            throw new IllegalArgumentException("Streams can't save or append to a state");
+        }
+        if (options.getApproximateTop() > 0) {
+            throw new IllegalArgumentException("The approximate mode reads its input twice, streams can't do that");
+        }
+        ConversionMetrics metrics = new ConversionMetrics(STREAM_SOURCE, -1);
+        tracked(metrics, () -> {
+            InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in);
+            InputStream counted = new ProgressInputStream(buffered, -1, metrics.track(ProgressListener.NONE));
+            boolean gzip = GzipInput.isGzip(buffered);
+            try (InputStream unpacked = gzip ? GzipInput.open(counted) : null) {
+                InputStream rows = unpacked != null ? unpacked : counted;
+                GZIPOutputStream gzipOut = options.isGzipOutput() ? new GZIPOutputStream(out, GZIP_BUFFER) : null;
+                OutputStream target = gzipOut != null ? gzipOut : out;
+                if (options.getMemoryBudget() > 0) {
+                    if (options.isBinaryOutput()) {
+                        throw new IllegalArgumentException("The external mode can't write binary tables");
+                    }
+                    ExternalTransposition.transpond(rows, -1, target, options, metrics);
+                } else {
+                    metrics.startPhase(ConversionMetrics.Phase.READ);
+                    CountTable table = aggregate(rows, options.getRollup());
+                    aggregated(table, metrics);
+                    write(table, options, target, metrics);
+                }
+                if (gzipOut != null) {
+                    gzipOut.finish();
+                }
+                out.flush();
             }
+            return true;
+        });
+    }
 
-            if (!MIME_CSV.equals(mimeType)) {
-                LOGGER.error("File {}\nhas unsupported mimetype \"{}\"!\n" +
-                                "This app understands only \"" + MIME_CSV + "\" (.csv extension).",
-                        f.getPath(), mimeType);
-                return;
+    /**
+     * Channel flavour of {@link #transpond(InputStream, OutputStream, ConversionOptions)}.
+     */
+    public static void transpond(ReadableByteChannel in, WritableByteChannel out, ConversionOptions options)
+            throws IOException {
+        transpond(Channels.newInputStream(in), Channels.newOutputStream(out), options);
+    }
+
+    /**
+     * First step of a conversion: reads "time_marker value count" rows, after a header line, into a new table.
+     * The stream is not closed.
+     */
+    public static CountTable aggregate(InputStream in) throws IOException {
+        return aggregate(in, null);
+    }
+
+    /**
+     * Like {@link #aggregate(InputStream)}, with dates rolled up into coarser columns (unless the rollup is null).
+     */
+    public static CountTable aggregate(InputStream in, DateRollup rollup) throws IOException {
+        CountTable table = new CountTable();
+        table.rollUp(rollup);
+        ThreeColumnReader.read(in, true, table);
+        return table;
+    }
+
+    /**
+     * Second step of a conversion: writes the table transposed, sorted and filtered by the options, as CSV.
+     * The table can't take new rows afterwards. The stream is flushed, not closed.
+     */
+    public static void write(CountTable table, ConversionOptions options, OutputStream out) throws IOException {
+        write(table, options, out, new ConversionMetrics(STREAM_SOURCE, -1));
+    }
+
+    private static boolean tracked(ConversionMetrics metrics, Conversion conversion) throws IOException {
+        String result = ConversionMetrics.FAILED;
+        metrics.register();
+        try {
+            boolean converted = conversion.run();
+            result = converted ? ConversionMetrics.CONVERTED : ConversionMetrics.REJECTED;
+            return converted;
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            result = ConversionMetrics.CANCELLED;
+            throw e;
+        } finally {
+            metrics.finish(result);
+        }
+    }
+
+    private static boolean transpond(File f, ConversionOptions options, ProgressListener progress,
+                                     ConversionMetrics metrics) throws IOException {
+        metrics.startPhase(ConversionMetrics.Phase.DETECT);
+        if (!isTable(f)) {
+            return false;
+        }
+        boolean gzip = GzipInput.isGzip(f);
+
+        if (options.getMemoryBudget() > 0) {
+            if (options.isSaveState() || options.getAppendTo() != null) {
+                throw new IllegalArgumentException("The external mode can't save or append to a state");
+            }
+            if (options.getApproximateTop() > 0 || options.isBinaryOutput()) {
+                throw new IllegalArgumentException("The external mode can't be approximate or write binary tables");
             }
+            try (InputStream in = openInput(f, gzip, options, progress)) {
+                // the unpacked size is unknown
+                writeOutput(extractedFileFor(f, options), options,
+                        out -> ExternalTransposition.transpond(in, gzip ? -1 : f.length(), out, options, metrics));
+            }
+            metrics.bytesRead(f.length());
+            return true;
         }
 
-        Map<String, List<CountToDate>> mapOfValuesCounts = new HashMap<>();
+        if (options.getApproximateTop() > 0) {
+            if (options.isSaveState() || options.getAppendTo() != null) {
+                throw new IllegalArgumentException("The approximate mode can't save or append to a state");
+            }
+            int top = options.getApproximateTop();
+            int counters = options.getSketchCounters() > 0
+                    ? options.getSketchCounters()
+                    : HeavyHitters.defaultCounters(top);
+            // both passes report progress from 0 to 100%
+            CountTable table = HeavyHitters.aggregate(() -> openInput(f, gzip, options, progress), top, counters,
+                    options.getRollup(), metrics);
+            metrics.bytesRead(2 * f.length());
+            aggregated(table, metrics);
+            File extractedFile = extractedFileFor(f, options);
+            LOGGER.info("Fill output results to file: {}", extractedFile.getAbsolutePath());
+            ConversionOptions topOptions = options.toBuilder()
+                    .topN(options.getTopN() > 0 ? Math.min(options.getTopN(), top) : top)
+                    .build();
+            writeOutput(extractedFile, options, out -> write(table, topOptions, out, metrics));
+            return true;
+        }
 
-        {
-            Map<String, DateToListOfValuesToCount> mapOfRecords = new HashMap<>();
+        IngestPlan plan = null;
+        if (options.isEstimate()) {
+            metrics.startPhase(ConversionMetrics.Phase.ESTIMATE);
+            try (InputStream in = openInput(f, gzip, options, progress)) {
+                // the unpacked size is unknown, so gzipped inputs are read whole
+                plan = IngestPlan.estimate(in, gzip ? -1 : f.length(), options.getEstimateSampleBytes(),
+                        options.getRollup());
+            }
+            long peakBytes = plan.peakBytes(gzip ? 1 : options.getParallelism());
+            long maxHeap = Runtime.getRuntime().maxMemory();
+            LOGGER.info("Estimate of {}: {}, about {} MB of {} MB heap",
+                    f.getPath(), plan, peakBytes >> 20, maxHeap >> 20);
+            if (peakBytes > maxHeap) {
+                LOGGER.error("Table of {} needs about {} MB, more than the {} MB of heap (-Xmx)! "
+                                + "Give the JVM more memory, or convert with --memory-budget or --approximate-top.",
+                        f.getPath(), peakBytes >> 20, maxHeap >> 20);
+                return false;
+            }
+        }
 
-            try (Reader rdr = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
-                CSVParser csvParser = CSVFormat
-                        .RFC4180
-                        .withFirstRecordAsHeader()
-                        .withDelimiter(' ')
-                        .parse(rdr);
+        CountTable table = null;
+        File target = options.getAppendTo() != null ? options.getAppendTo() : f;
+        if (options.getAppendTo() != null) {
+            File stateFile = stateFileFor(target);
+            if (!stateFile.isFile()) {
+                LOGGER.error("No saved state {} to append {} to! Convert {} with --save-state first.",
+                        stateFile.getPath(), f.getPath(), target.getPath());
+                return false;
+            }
+            metrics.startPhase(ConversionMetrics.Phase.LOAD);
+            table = AggregateState.load(stateFile);
+            if (table.rollup() != options.getRollup()) {
+                // day, week and month columns can't be mixed in one table
+                LOGGER.error("State {} is rolled up by {}, {} can't be appended to it rolled up by {}! "
+                                + "Append with the same --rollup as the state was saved with.",
+                        stateFile.getPath(), rollupName(table.rollup()), f.getPath(), rollupName(options.getRollup()));
+                return false;
+            }
+            LOGGER.info("Loaded state of {}: {} values, {} dates, {} rows",
+                    target.getPath(), table.valuesCount(), table.datesCount(), table.rowsCount());
+        }
 
-                List<CSVRecord> records = csvParser.getRecords();
-                records.forEach(r -> {
-                    if (r.size() != 3) {
-                        throw new RuntimeException("I can work with only 3 columns! line: [" + r.toString() + "]");
-                    }
-                    String date = r.get(0);
-                    String value = r.get(1);
-                    String count = r.get(2);
+        metrics.startPhase(ConversionMetrics.Phase.READ);
+        if (options.getParallelism() > 1 && !gzip) {
+            CountTable delta = ChunkedFileIngest.ingest(f, options.getParallelism(), options.getRollup(), plan,
+                    progress, metrics);
+            if (table != null) {
+                metrics.startPhase(ConversionMetrics.Phase.MERGE);
+                table.merge(delta);
+            } else {
+                table = delta;
+            }
+        } else {
+            if (table == null) {
+                table = plan != null ? plan.newTable() : new CountTable();
+                table.rollUp(options.getRollup());
+            }
+            try (InputStream in = openInput(f, gzip, options, progress)) {
+                ThreeColumnReader.read(in, true, table);
+            }
+        }
+        metrics.bytesRead(f.length());
+        aggregated(table, metrics);
 
-                    long parsedCount;
+        File extractedFile = extractedFileFor(f, options);
 
-                    try {
-                        parsedCount = Long.parseLong(count);
-                    } catch (NumberFormatException e) {
-                        throw new RuntimeException("Bad row format! Third column should be Long. line: [" + r.toString() + "]");
-                    }
+        LOGGER.info("Fill output results to file: {}", extractedFile.getAbsolutePath());
 
-                    ValueToCount valueToCount = new ValueToCount(value, parsedCount);
+        CountTable aggregated = table;
+        writeOutput(extractedFile, options, out -> write(aggregated, options, out, metrics), table,
+                options.isSaveState() || options.getAppendTo() != null ? stateFileFor(target) : null, metrics);
+        return true;
+    }
 
-                    if (mapOfRecords.get(date) != null) {
-                        mapOfRecords.get(date).getValueToCountList().add(valueToCount);
-                    } else {
-                        List<ValueToCount> list = new ArrayList<>();
-                        list.add(valueToCount);
-                        mapOfRecords.put(date, new DateToListOfValuesToCount(date, list));
-                    }
-                });
+    /**
+     * Combines shards (e.g. the same period exported by several nodes) into one output,
+     * {@code <target>_extracted.csv}: counts of the same value and date are summed.
+     * Shards are read at the same time in {@code threads} threads, each into its own table,
+     * and the tables are merged pairwise, also in parallel. The target itself is not read.
+     *
+     * @return false if a shard was rejected (the reason is logged), true when the output was written
+     */
+    public static boolean transpondShards(List<File> shards, File target, ConversionOptions options, int threads,
+                                          ProgressListener progress) throws IOException {
+        if (options.getMemoryBudget() > 0 || options.getAppendTo() != null || options.getApproximateTop() > 0) {
+            throw new IllegalArgumentException("Shards are merged in memory, exactly, and not appended to a state");
+        }
+        long bytesTotal = 0;
+        for (File shard : shards) {
+            bytesTotal += shard.length();
+        }
+        ConversionMetrics metrics = new ConversionMetrics(target.getPath(), bytesTotal);
+        long shardsBytes = bytesTotal;
+        return tracked(metrics, () -> {
+            metrics.startPhase(ConversionMetrics.Phase.DETECT);
+            for (File shard : shards) {
+                if (!isTable(shard)) {
+                    return false;
+                }
             }
 
-            mapOfRecords.values().forEach(v2cl -> {
-                v2cl.getValueToCountList().forEach(v2c -> {
-                    String value = v2c.getValue();
-                    Long count = v2c.getCount();
-
-                    if (mapOfValuesCounts.get(value) != null) {
-                        mapOfValuesCounts.get(value).add(new CountToDate(count, v2cl.getDate()));
-                    } else {
-                        List<CountToDate> list = new ArrayList<>();
-                        list.add(new CountToDate(count, v2cl.getDate()));
-                        mapOfValuesCounts.put(value, list);
-                    }
-                });
-            });
+            metrics.startPhase(ConversionMetrics.Phase.READ);
+            CountTable table = ShardMerge.ingest(shards, threads, options.getRollup(), metrics.track(progress),
+                    metrics);
+            metrics.bytesRead(shardsBytes);
+            aggregated(table, metrics);
+
+            File extractedFile = extractedFileFor(target, options);
+            LOGGER.info("Fill output results of {} shards to file: {}", shards.size(), extractedFile.getAbsolutePath());
+            writeOutput(extractedFile, options, out -> write(table, options, out, metrics), table,
+                    options.isSaveState() ? stateFileFor(target) : null, metrics);
+            return true;
+        });
+    }
+
+    /**
+     * MIME type check of an input, plain or gzipped; the reason of a rejection is logged.
+     */
+    static boolean isTable(File f) {
+        String mimeType;
+        try {
+            mimeType = GzipInput.isGzip(f) ? detectCompressed(f) : FormatSniffer.detect(f);
+        } catch (IOException e) {
+            LOGGER.error("File at {} is not readable!", f.getPath(), e);
+            return false;
         }
 
-        List<ValueToCountToDateList> listOfValueToCountToDateLists;
-        ArrayList<String> datesUniqueList;
+        if (!MIME_CSV.equals(mimeType)) {
+            LOGGER.error("File {}\nhas unsupported mimetype \"{}\"!\n" +
+                            "This app understands only \"" + MIME_CSV + "\" (.csv extension, may be gzipped).",
+                    f.getPath(), mimeType);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Any gzip is application/gzip by itself, so the type is detected by the unpacked head and the inner name.
+     */
+    private static String detectCompressed(File f) throws IOException {
+        byte[] head = new byte[FormatSniffer.HEAD_SIZE];
+        int length = 0;
+        int n = 0;
+        try (InputStream in = new GZIPInputStream(new FileInputStream(f))) {
+            while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+                length += n;
+            }
+        }
+        String name = f.getName().endsWith(GZIP_SUFFIX)
+                ? f.getName().substring(0, f.getName().length() - GZIP_SUFFIX.length())
+                : f.getName();
+        return FormatSniffer.detect(head, length, n < 0, name);
+    }
+
+    private static InputStream openInput(File f, boolean gzip, ConversionOptions options, ProgressListener progress)
+            throws IOException {
+        if (gzip) {
+            return GzipInput.open(f, options.getParallelism(), progress);
+        }
+        return new ProgressInputStream(new FileInputStream(f), f.length(), progress);
+    }
 
-        {
-            LinkedHashMap<String, List<CountToDate>> sortedMapOfValuesCounts = new LinkedHashMap<>();
+    private static OutputStream openOutput(File extractedFile, ConversionOptions options) throws IOException {
+        OutputStream out = new FileOutputStream(extractedFile);
+        if (!options.isGzipOutput()) {
+            return out;
+        }
+        try {
+            return new GZIPOutputStream(out, GZIP_BUFFER);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
 
-            mapOfValuesCounts.entrySet()
-                    .stream()
-                    .sorted(Map.Entry.comparingByValue(Comparator.comparingInt(list -> -list.size())))
-                    .forEachOrdered(x -> sortedMapOfValuesCounts.put(x.getKey(), x.getValue()));
+    /**
+     * Writes to a temporary file next to {@code extractedFile}, moved into place once complete:
+     * the previous output, which may be the one being appended to, stays whole if the write fails or is cancelled.
+     */
+    private static void writeOutput(File extractedFile, ConversionOptions options, OutputWriter writer)
+            throws IOException {
+        writeOutput(extractedFile, options, writer, null, null, null);
+    }
 
-            listOfValueToCountToDateLists = sortedMapOfValuesCounts.entrySet().stream()
-                    .map(e -> new ValueToCountToDateList(e.getKey(), e.getValue()))
-                    .collect(Collectors.toList());
+    /**
+     * Same, also saving the table into {@code stateFile} unless it is null. Writing the output releases the table,
+     * so the state is saved aside beforehand, and replaces the previous one only once the output is in place:
+     * a failed conversion leaves the history as it was, to be appended to again.
+     */
+    private static void writeOutput(File extractedFile, ConversionOptions options, OutputWriter writer,
+                                    CountTable table, File stateFile, ConversionMetrics metrics) throws IOException {
+        Path stateTmp = null;
+        Path tmp = null;
+        try {
+            if (stateFile != null) {
+                metrics.startPhase(ConversionMetrics.Phase.SAVE);
+                stateTmp = createTempFile(stateFile);
+                AggregateState.write(table, stateTmp.toFile());
+            }
+            tmp = createTempFile(extractedFile);
+            try (OutputStream out = openOutput(tmp.toFile(), options)) {
+                writer.write(out);
+            }
+            move(tmp, extractedFile.toPath());
+            if (stateTmp != null) {
+                move(stateTmp, stateFile.toPath());
+            }
+        } finally {
+            if (tmp != null) {
+                Files.deleteIfExists(tmp);
+            }
+            if (stateTmp != null) {
+                Files.deleteIfExists(stateTmp);
+            }
+        }
+    }
 
-            TreeSet<String> datesUniqueSet = new TreeSet<>();
+    private static Path createTempFile(File next) throws IOException {
+        return Files.createTempFile(next.getAbsoluteFile().getParentFile().toPath(), next.getName() + ".", TMP_SUFFIX);
+    }
 
-            listOfValueToCountToDateLists.forEach(valueToCountToDateList -> {
-                Set<String> dates = valueToCountToDateList.getCountToDateList().stream()
-                        .map(CountToDate::getDate)
-                        .collect(Collectors.toSet());
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 
-                datesUniqueSet.addAll(dates);
-            });
+    static void aggregated(CountTable table, ConversionMetrics metrics) {
+        if (table.isGroupedByValue()) {
+            LOGGER.info("Rows came grouped by value, rows of a value were appended to its row without hashing");
+        } else if (table.isGroupedByDate()) {
+            LOGGER.info("Rows came grouped by date, rows of a date took its id without hashing");
+        }
+        metrics.rows(table.rowsCount());
+        metrics.distinct(table.valuesCount(), table.datesCount(), table.cellsCount());
+        metrics.tableBytes(table.estimatedBytes());
+    }
 
-            datesUniqueList = new ArrayList<>(datesUniqueSet);
-            datesUniqueList.sort(String::compareTo);
+    static void write(CountTable table, ConversionOptions options, OutputStream out,
+                      ConversionMetrics metrics) throws IOException {
+        metrics.startPhase(ConversionMetrics.Phase.SORT);
+        int[] sortedDateIds = table.sortedDateIds();
 
+        if (LOGGER.isInfoEnabled()) {
+            List<String> datesUniqueList = new ArrayList<>(sortedDateIds.length);
+            for (int dateId : sortedDateIds) {
+                datesUniqueList.add(table.date(dateId));
+            }
             LOGGER.info("Unique dates list: {}", datesUniqueList);
         }
+        LOGGER.info("dates count: {}", table.datesCount());
+        LOGGER.info("cells count: {} ({} layout)", table.cellsCount(), table.layout());
 
-        final int maxSizeOfDatesFinal = datesUniqueList.size();
-        LOGGER.info("dates count: {}", maxSizeOfDatesFinal);
-
-        List<ValueToListOfCountToDateWithAverages> val2CountWDateWAvgsList;
-
-        {
-            val2CountWDateWAvgsList = listOfValueToCountToDateLists.stream()
-                    .map(valueToCountToDateList -> {
-                        long sumOfCounts = valueToCountToDateList.countToDateList.stream().mapToLong(CountToDate::getCount).sum();
-                        return new ValueToListOfCountToDateWithAverages(
-                                valueToCountToDateList.getValue(),
-                                valueToCountToDateList.getCountToDateList(),
-                                (double) sumOfCounts / maxSizeOfDatesFinal,
-                                (double) sumOfCounts / valueToCountToDateList.getCountToDateList().size());
-                    })
-                    .sorted(Comparator.comparing(ValueToListOfCountToDateWithAverages::getAvgByAll).reversed())
-                    .collect(Collectors.toList());
-
-            val2CountWDateWAvgsList.forEach(valueToListOfCountToDateWithAverages -> {
-                valueToListOfCountToDateWithAverages.getCountToDateList().sort(Comparator.comparing(CountToDate::getDate));
-            });
-        }
+        int[] sortedValueIds = table.sortedValueIds(options.getTopN(), options.getMinAvgByAll());
 
-        LOGGER.info("result size: {}", val2CountWDateWAvgsList.size());
+        metrics.startPhase(ConversionMetrics.Phase.TRANSPOSE);
+        TransposedRows rows = table.toRows(sortedDateIds, options.isFiltered() ? sortedValueIds : null);
 
-        if (val2CountWDateWAvgsList.size() > 6) {
-            LOGGER.info("First 3 result elements: {}", val2CountWDateWAvgsList.subList(0, 3));
+        LOGGER.info("result size: {}", sortedValueIds.length);
+
+        if (sortedValueIds.length > 6) {
+            LOGGER.info("First 3 result elements: {}", describe(table, rows, sortedValueIds, sortedDateIds, 0, 3));
             LOGGER.info("Last  3 result elements: {}",
-                    val2CountWDateWAvgsList.subList(val2CountWDateWAvgsList.size()-4, val2CountWDateWAvgsList.size()-1));
+                    describe(table, rows, sortedValueIds, sortedDateIds, sortedValueIds.length - 4, sortedValueIds.length - 1));
         } else {
-            LOGGER.info("result elements: {}", val2CountWDateWAvgsList);
+            LOGGER.info("result elements: {}", describe(table, rows, sortedValueIds, sortedDateIds, 0, sortedValueIds.length));
         }
 
+        metrics.startPhase(ConversionMetrics.Phase.WRITE);
 
+        if (options.isBinaryOutput()) {
+            BinaryTable.write(table, rows, sortedValueIds, sortedDateIds, out);
+            return;
+        }
 
-        File extractedFile = new File(f.getParent(),
-                f.getName()
-                        .replaceFirst("\\.csv?$", "") + "_extracted.csv");
-
-        LOGGER.info("Fill output results to file: {}", extractedFile.getAbsolutePath());
-
-        try (CSVPrinter csvPrinter =
-                     CSVFormat
-                             .RFC4180
-                             .withFirstRecordAsHeader()
-                             .withDelimiter(';')
-                             .print(extractedFile, StandardCharsets.UTF_8))
-        {
-            try {
-                csvPrinter.print("value");
-                csvPrinter.print("avgByAll");
-                csvPrinter.print("avgByNE");
-                datesUniqueList.forEach(s -> {
-                    try {
-                        csvPrinter.print(s);
-                    } catch (IOException e) {
-                        throw new RuntimeException("Can't output CSV-file!", e);
-                    }
-                });
-                csvPrinter.println();
-            } catch (IOException e) {
-                LOGGER.error("Can't output CSV-file!", e);
+        TransposedCsvWriter writer = TransposedCsvWriter.open(out);
+        writer.writeHeader(table::date, sortedDateIds);
+        for (int i = 0; i < sortedValueIds.length; i++) {
+            if ((i & 0xFFF) == 0 && Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Conversion of " + metrics.getFile() + " is cancelled");
             }
-
-            val2CountWDateWAvgsList.forEach(valueToListOfCountToDateWithAverages -> {
-                String value = valueToListOfCountToDateWithAverages.getValue();
-                Double avgByAll = valueToListOfCountToDateWithAverages.getAvgByAll();
-                Double avgByNotEmpty = valueToListOfCountToDateWithAverages.getAvgByNotEmpty();
-                List<CountToDate> countToDateList = valueToListOfCountToDateWithAverages.getCountToDateList();
-                List<CountToDate> fullDatesCountsList = datesUniqueList.stream().map(s -> {
-                    Optional<CountToDate> countToDate1 = countToDateList.stream()
-                            .filter(countToDate -> s.equals(countToDate.getDate()))
-                            .findAny();
-                    return countToDate1.orElseGet(() -> new CountToDate(null, s));
-                }).collect(Collectors.toList());
-
-                try {
-                    csvPrinter.print(value);
-                    csvPrinter.print(nf.format(avgByAll));
-                    csvPrinter.print(nf.format(avgByNotEmpty));
-                    fullDatesCountsList.forEach(countToDate -> {
-                        try {
-                            csvPrinter.print(countToDate.getCount());
-                        } catch (IOException e) {
-                            throw new RuntimeException("Can't output CSV-file!", e);
-                        }
-                    });
-                    csvPrinter.println();
-                } catch (IOException e) {
-                    throw new RuntimeException("Can't output CSV-file!", e);
-                }
-            });
+            writer.writeRow(table, rows, sortedValueIds[i], sortedDateIds.length);
         }
+        writer.flush();
     }
 
-    @Value
-    public static class DateToListOfValuesToCount {
-        String date;
-        List<ValueToCount> valueToCountList;
+    static File extractedFileFor(File f) {
+        return new File(f.getParent(),
+                f.getName()
+                        .replaceFirst(INPUT_EXTENSIONS, "") + EXTRACTED_SUFFIX);
     }
 
-    @Value
-    public static class ValueToCount {
-        String value;
-        Long count;
+    /**
+     * @return the file the conversion of f writes to: the output of {@link ConversionOptions#getAppendTo()} if set,
+     * with {@link #GZIP_SUFFIX} if the output is gzipped
+     */
+    static File extractedFileFor(File f, ConversionOptions options) {
+        File extractedFile = extractedFileFor(options.getAppendTo() != null ? options.getAppendTo() : f);
+        if (options.isBinaryOutput()) {
+            extractedFile = new File(extractedFile.getParent(), extractedFile.getName()
+                    .substring(0, extractedFile.getName().length() - EXTRACTED_SUFFIX.length()) + BINARY_SUFFIX);
+        }
+        return options.isGzipOutput() ? new File(extractedFile.getPath() + GZIP_SUFFIX) : extractedFile;
     }
 
-    @Value
-    public static class ValueToCountToDateList {
-        String value;
-        List<CountToDate> countToDateList;
-
-        @Override
-        public String toString() {
-            return "{\n" +
-                    "\"value\" = \"" + value + "\",\n" +
-                    "\"countToDateList\" = " + countToDateList +
-                    "\n}";
-        }
+    public static File stateFileFor(File f) {
+        return new File(f.getParent(),
+                f.getName()
+                        .replaceFirst(INPUT_EXTENSIONS, "") + STATE_SUFFIX);
     }
 
-    @Value
-    public static class ValueToListOfCountToDateWithAverages {
-        String value;
-        List<CountToDate> countToDateList;
-        Double avgByAll;
-        Double avgByNotEmpty;
-
-        @Override
-        public String toString() {
-            return "{\n" +
-                    "\t\"value\" = \"" + value + "\"," +
-                    "\n\t\"countToDateList\" = " + countToDateList +
-                    ",\n\t\"avgByAll\" = " + nf.format(avgByAll) +
-                    ", \"avgByNotEmpty\" = " + nf.format(avgByNotEmpty) +
-                    "\n}";
+    private static String rollupName(DateRollup rollup) {
+        return rollup != null ? rollup.name().toLowerCase(Locale.ROOT) : "nothing";
+    }
+
+    private static String describe(CountTable table, TransposedRows rows, int[] valueIds, int[] sortedDateIds,
+                                   int from, int to) {
+        FixedDecimalFormatter formatter = new FixedDecimalFormatter();
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = from; i < to; i++) {
+            int valueId = valueIds[i];
+            if (i > from) {
+                sb.append(", ");
+            }
+            sb.append("{\n\t\"value\" = \"").append(table.value(valueId)).append("\",\n\t\"countToDateList\" = [");
+            for (int cell = rows.rowStart(valueId); cell < rows.rowEnd(valueId); cell++) {
+                sb.append(cell > rows.rowStart(valueId) ? ", " : "")
+                        .append("{\"count = \"").append(rows.count(cell))
+                        .append(", \"date\" = \"").append(table.date(sortedDateIds[rows.dateRank(cell)])).append("\"}");
+            }
+            sb.append("],\n\t\"avgByAll\" = ").append(formatter.format(table.avgByAll(valueId)))
+                    .append(", \"avgByNotEmpty\" = ").append(formatter.format(table.avgByNotEmpty(valueId)))
+                    .append("\n}");
         }
+        return sb.append(']').toString();
     }
 
-    @Value
-    public static class CountToDate {
-        Long count;
-        String date;
+    @FunctionalInterface
+    private interface Conversion {
+        boolean run() throws IOException;
+    }
 
-        @Override
-        public String toString() {
-            return "{\"count = \"" + count + ", \"date\" = \"" + date + "\"}";
-        }
+    @FunctionalInterface
+    private interface OutputWriter {
+        void write(OutputStream out) throws IOException;
     }
 }
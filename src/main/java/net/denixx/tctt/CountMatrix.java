@@ -0,0 +1,32 @@
+package net.denixx.tctt;
+
+/**
+ * Primitive storage of counts addressed by (value id, date id).
+ */
+public interface CountMatrix {
+
+    /**
+     * Adds count to the cell, creating it when absent.
+     *
+     * @return true if the cell was empty before
+     */
+    boolean add(int valueId, int dateId, long count);
+
+    boolean contains(int valueId, int dateId);
+
+    /**
+     * @return count of the cell, 0 for an empty one (check {@link #contains} to tell them apart)
+     */
+    long get(int valueId, int dateId);
+
+    long cellsCount();
+
+    long allocatedBytes();
+
+    void forEachCell(CellConsumer consumer);
+
+    @FunctionalInterface
+    interface CellConsumer {
+        void accept(int valueId, int dateId, long count);
+    }
+}
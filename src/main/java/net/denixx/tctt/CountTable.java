@@ -0,0 +1,507 @@
+package net.denixx.tctt;
+
+import java.util.Arrays;
+
+/**
+ * Value x date table of counts: values and dates are interned into int ids,
+ * counts live in a primitive {@link CountMatrix}.
+ * <p>
+ * Inputs are often sorted by value or by date. While rows come grouped that way, a row with the same value
+ * (date) as the one before takes its id by a plain byte comparison, without hashing; the first value (date)
+ * that shows up again after its group has ended turns this off for good, and every row is hashed.
+ * <p>
+ * While rows come grouped by value, every value's row is appended, in the end as compact as it is written out,
+ * to a {@link GroupedCountMatrix}, with no hashing of cells either. Once a value comes back, the cells move
+ * into a matrix which starts dense and turns sparse once most of its cells stay empty, or once it could not
+ * grow any more. A {@link #presized} table has its layout picked up front instead.
+ */
+public class CountTable implements RowSink {
+    private static final long SPARSE_CHECK_MIN_CELLS = 1 << 16;
+    private static final int SPARSE_FILL_RATIO = 4;
+    private static final long MAX_DENSE_CELLS = Integer.MAX_VALUE / 2;
+
+    private final StringDictionary values;
+    private final StringDictionary dates;
+    private DateRollup.Buckets dateBuckets;
+    private CountMatrix matrix;
+    // a layout chosen up front for this many values and dates is kept while they are not exceeded
+    private int plannedValues;
+    private int plannedDates;
+
+    private long[] sums;
+    private int[] filled;
+    private long rows;
+
+    // runs of sorted input: id of the previous row's value and date, while they come grouped
+    private boolean valuesGrouped = true;
+    private int runValueId = -1;
+    private boolean datesGrouped = true;
+    private int runDateId = -1;
+    private byte[] runDate = new byte[32];
+    private int runDateLength = -1;
+
+    public CountTable() {
+        this(16, 16);
+    }
+
+    public CountTable(int expectedValues, int expectedDates) {
+        this(new StringDictionary(expectedValues), new StringDictionary(expectedDates),
+                new GroupedCountMatrix(), expectedValues);
+    }
+
+    private CountTable(StringDictionary values, StringDictionary dates, CountMatrix matrix, int expectedValues) {
+        this.values = values;
+        this.dates = dates;
+        this.matrix = matrix;
+        sums = new long[Math.max(expectedValues, 16)];
+        filled = new int[sums.length];
+    }
+
+    /**
+     * Table sized up front for the expected numbers, in the layout they call for
+     * ({@link #isSparse(long, long, long)}), kept as long as the numbers hold: if they are right,
+     * it never grows.
+     *
+     * @param valueBytes expected total length of the values in UTF-8, dateBytes the same for the dates
+     */
+    public static CountTable presized(int expectedValues, long valueBytes, int expectedDates, long dateBytes,
+                                      long expectedCells) {
+        CountMatrix matrix = isSparse(expectedValues, expectedDates, expectedCells)
+                ? new SparseCountMatrix(expectedCells)
+                : new DenseCountMatrix(expectedValues, expectedDates);
+        CountTable table = new CountTable(new StringDictionary(expectedValues, valueBytes),
+                new StringDictionary(expectedDates, dateBytes), matrix, expectedValues);
+        table.plannedValues = expectedValues;
+        table.plannedDates = expectedDates;
+        return table;
+    }
+
+    /**
+     * Heap a {@link #presized} table of these numbers takes, by the same rough measure as {@link #estimatedBytes()}.
+     */
+    public static long estimatedBytes(int values, long valueBytes, int dates, long dateBytes, long cells) {
+        long matrixBytes = isSparse(values, dates, cells)
+                ? SparseCountMatrix.allocatedBytes(cells)
+                : DenseCountMatrix.allocatedBytes(values, dates);
+        return StringDictionary.estimatedBytes(values, valueBytes) + StringDictionary.estimatedBytes(dates, dateBytes)
+                + matrixBytes + Math.max(values, 16) * 12L;
+    }
+
+    /**
+     * @return whether that many cells of a values x dates matrix are better kept in a sparse layout
+     */
+    public static boolean isSparse(long values, long dates, long cells) {
+        return cells * SPARSE_FILL_RATIO < values * dates || values * dates > MAX_DENSE_CELLS;
+    }
+
+    /**
+     * Table with the given dates already interned under the same ids; avgByAll counts all of them.
+     */
+    public static CountTable withDates(StringDictionary dates, int expectedValues) {
+        CountTable table = new CountTable(expectedValues, dates.size());
+        for (int d = 0; d < dates.size(); d++) {
+            table.checkDateId(table.dates.intern(dates, d));
+        }
+        return table;
+    }
+
+    @Override
+    public void add(String date, String value, long count) {
+        add(valueId(value), dateId(date), count);
+        rows++;
+    }
+
+    @Override
+    public void add(byte[] buf, int dateOff, int dateLen, int valueOff, int valueLen, long count) {
+        add(runValueId(buf, valueOff, valueLen), runDateId(buf, dateOff, dateLen), count);
+        rows++;
+    }
+
+    private int runValueId(byte[] buf, int off, int len) {
+        if (!valuesGrouped) {
+            return valueId(buf, off, len);
+        }
+        if (runValueId >= 0 && values.keyEquals(runValueId, buf, off, len)) {
+            return runValueId;
+        }
+        int id = valueId(buf, off, len);
+        if (id != values.size() - 1) {
+            valuesGrouped = false;
+        }
+        runValueId = id;
+        return id;
+    }
+
+    private int runDateId(byte[] buf, int off, int len) {
+        if (!datesGrouped) {
+            return dateId(buf, off, len);
+        }
+        // compared as read, not as interned: with a rollup the interned date is the bucket
+        if (len == runDateLength && rangeEquals(runDate, buf, off, len)) {
+            return runDateId;
+        }
+        int datesBefore = dates.size();
+        int id = dateId(buf, off, len);
+        if (runDateLength >= 0 && dates.size() == datesBefore && (dateBuckets == null || id != runDateId)) {
+            // a date seen before (or, rolled up, a bucket left before) is back
+            datesGrouped = false;
+        }
+        if (runDate.length < len) {
+            runDate = new byte[len];
+        }
+        System.arraycopy(buf, off, runDate, 0, len);
+        runDateLength = len;
+        runDateId = id;
+        return id;
+    }
+
+    private static boolean rangeEquals(byte[] run, byte[] buf, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            if (run[i] != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether all rows so far came grouped by value (e.g. sorted by it)
+     */
+    public boolean isGroupedByValue() {
+        return valuesGrouped;
+    }
+
+    /**
+     * @return whether all rows so far came grouped by date (e.g. sorted by it)
+     */
+    public boolean isGroupedByDate() {
+        return datesGrouped;
+    }
+
+    public int valueId(String value) {
+        return checkValueId(values.intern(value));
+    }
+
+    public int valueId(byte[] buf, int off, int len) {
+        return checkValueId(values.intern(buf, off, len));
+    }
+
+    public int dateId(String date) {
+        return checkDateId(dateBuckets != null ? dateBuckets.intern(date) : dates.intern(date));
+    }
+
+    public int dateId(byte[] buf, int off, int len) {
+        return checkDateId(dateBuckets != null ? dateBuckets.intern(buf, off, len) : dates.intern(buf, off, len));
+    }
+
+    /**
+     * Dates added from now on are summed into the buckets of the rollup, null adds them as they are.
+     * Dates already in the table (and tables merged in) are not touched.
+     */
+    public void rollUp(DateRollup rollup) {
+        dateBuckets = rollup != null ? new DateRollup.Buckets(rollup, dates) : null;
+    }
+
+    /**
+     * @return rollup of the dates added, null for none
+     */
+    public DateRollup rollup() {
+        return dateBuckets != null ? dateBuckets.rollup() : null;
+    }
+
+    private int checkValueId(int id) {
+        if (id == sums.length) {
+            sums = Arrays.copyOf(sums, id * 2);
+            filled = Arrays.copyOf(filled, id * 2);
+        }
+        if (Integer.bitCount(id) == 1) {
+            checkLayout();
+        }
+        return id;
+    }
+
+    private int checkDateId(int id) {
+        if (Integer.bitCount(id) == 1) {
+            checkLayout();
+        }
+        return id;
+    }
+
+    public void add(int valueId, int dateId, long count) {
+        if (matrix instanceof GroupedCountMatrix && !((GroupedCountMatrix) matrix).accepts(valueId)) {
+            ungroup();
+        }
+        if (matrix instanceof DenseCountMatrix && !((DenseCountMatrix) matrix).fits(valueId, dateId)) {
+            sparsen();
+        }
+        if (matrix.add(valueId, dateId, count)) {
+            filled[valueId]++;
+        }
+        sums[valueId] += count;
+    }
+
+    /**
+     * Adds every cell of another table to this one.
+     */
+    public void merge(CountTable other) {
+        int[] valueIds = new int[other.values.size()];
+        for (int v = 0; v < valueIds.length; v++) {
+            valueIds[v] = checkValueId(values.intern(other.values, v));
+        }
+        int[] dateIds = new int[other.dates.size()];
+        for (int d = 0; d < dateIds.length; d++) {
+            dateIds[d] = checkDateId(dates.intern(other.dates, d));
+        }
+        other.matrix.forEachCell((valueId, dateId, count) -> add(valueIds[valueId], dateIds[dateId], count));
+        rows += other.rows;
+        // groups of both tables may be split between them
+        valuesGrouped = false;
+        datesGrouped = false;
+    }
+
+    /**
+     * @return number of input rows added through {@link RowSink}, duplicates included
+     */
+    public long rowsCount() {
+        return rows;
+    }
+
+    /**
+     * Counts rows that came into the table without going through {@link RowSink} (a loaded saved state).
+     */
+    void addRows(long rows) {
+        this.rows += rows;
+    }
+
+    /**
+     * Visits every non-empty cell, in no particular order.
+     */
+    public void forEachCell(CountMatrix.CellConsumer consumer) {
+        matrix.forEachCell(consumer);
+    }
+
+    public int valuesCount() {
+        return values.size();
+    }
+
+    public int datesCount() {
+        return dates.size();
+    }
+
+    public String value(int valueId) {
+        return values.get(valueId);
+    }
+
+    public String date(int dateId) {
+        return dates.get(dateId);
+    }
+
+    public boolean contains(int valueId, int dateId) {
+        return matrix.contains(valueId, dateId);
+    }
+
+    public long count(int valueId, int dateId) {
+        return matrix.get(valueId, dateId);
+    }
+
+    public long sum(int valueId) {
+        return sums[valueId];
+    }
+
+    public int filled(int valueId) {
+        return filled[valueId];
+    }
+
+    public double avgByAll(int valueId) {
+        return (double) sums[valueId] / dates.size();
+    }
+
+    public double avgByNotEmpty(int valueId) {
+        return (double) sums[valueId] / filled[valueId];
+    }
+
+    public long cellsCount() {
+        return matrix.cellsCount();
+    }
+
+    /**
+     * Rough heap size of the table, used to keep aggregation within a memory budget.
+     */
+    public long estimatedBytes() {
+        return values.estimatedBytes() + dates.estimatedBytes()
+                + (matrix == null ? 0 : matrix.allocatedBytes())
+                + sums.length * 12L;
+    }
+
+    public boolean isSparse() {
+        return matrix instanceof SparseCountMatrix;
+    }
+
+    /**
+     * @return "grouped", "sparse" or "dense", for the log
+     */
+    public String layout() {
+        return matrix instanceof GroupedCountMatrix ? "grouped" : isSparse() ? "sparse" : "dense";
+    }
+
+    /**
+     * @return date ids in lexicographical order of dates
+     */
+    public int[] sortedDateIds() {
+        return dates.sortedIds();
+    }
+
+    /**
+     * @return value ids ordered by avgByAll descending, then by number of filled dates descending, then by value
+     */
+    public int[] sortedValueIds() {
+        int[] ids = identity(values.size());
+        IntSort.sort(ids, this::compareValues);
+        return ids;
+    }
+
+    /**
+     * Same order as {@link #sortedValueIds()}, but only values with avgByAll >= minAvgByAll,
+     * and only the first {@code limit} of them when limit > 0. The best values are picked with
+     * a size-bounded heap, so only they get sorted.
+     */
+    public int[] sortedValueIds(int limit, double minAvgByAll) {
+        if (limit <= 0 && minAvgByAll == Double.NEGATIVE_INFINITY) {
+            return sortedValueIds();
+        }
+
+        int size = 0;
+        int[] heap;
+        if (limit > 0) {
+            // min-heap on rank: the root is the worst value kept so far
+            heap = new int[Math.min(limit, values.size())];
+            for (int v = 0; v < values.size(); v++) {
+                if (avgByAll(v) < minAvgByAll) {
+                    continue;
+                }
+                if (size < heap.length) {
+                    heap[size] = v;
+                    siftUp(heap, size++);
+                } else if (heap.length > 0 && compareValues(v, heap[0]) < 0) {
+                    heap[0] = v;
+                    siftDown(heap, size);
+                }
+            }
+        } else {
+            heap = new int[values.size()];
+            for (int v = 0; v < values.size(); v++) {
+                if (avgByAll(v) >= minAvgByAll) {
+                    heap[size++] = v;
+                }
+            }
+        }
+
+        int[] ids = Arrays.copyOf(heap, size);
+        IntSort.sort(ids, this::compareValues);
+        return ids;
+    }
+
+    /**
+     * Lays the cells out row by row in date order and releases the matrix:
+     * the table can't take new counts or answer {@link #contains}/{@link #count} afterwards.
+     */
+    public TransposedRows toRows(int[] sortedDateIds) {
+        return toRows(sortedDateIds, null);
+    }
+
+    /**
+     * Like {@link #toRows(int[])}, but only rows of the given values get materialized (all when null).
+     */
+    public TransposedRows toRows(int[] sortedDateIds, int[] valueIds) {
+        int[] rowSizes = filled;
+        if (valueIds != null) {
+            rowSizes = new int[values.size()];
+            for (int valueId : valueIds) {
+                rowSizes[valueId] = filled[valueId];
+            }
+        }
+        TransposedRows rows = TransposedRows.build(matrix, rowSizes, values.size(), sortedDateIds);
+        matrix = null;
+        return rows;
+    }
+
+    public int compareValues(int a, int b) {
+        int c = Double.compare(avgByAll(b), avgByAll(a));
+        if (c != 0) {
+            return c;
+        }
+        c = Integer.compare(filled[b], filled[a]);
+        if (c != 0) {
+            return c;
+        }
+        return values.get(a).compareTo(values.get(b));
+    }
+
+    /**
+     * A value came back after its row was closed: the rows go into a dense or a sparse matrix, whichever fits.
+     */
+    private void ungroup() {
+        long cells = matrix.cellsCount();
+        CountMatrix ungrouped = isSparse(values.size(), dates.size(), cells)
+                ? new SparseCountMatrix(cells)
+                : new DenseCountMatrix(values.size(), dates.size());
+        matrix.forEachCell(ungrouped::add);
+        matrix = ungrouped;
+    }
+
+    private void checkLayout() {
+        if (matrix instanceof DenseCountMatrix
+                && (values.size() > plannedValues || dates.size() > plannedDates)
+                && (long) values.size() * dates.size() >= SPARSE_CHECK_MIN_CELLS
+                && matrix.cellsCount() * SPARSE_FILL_RATIO < (long) values.size() * dates.size()) {
+            sparsen();
+        }
+    }
+
+    private void sparsen() {
+        CountMatrix sparse = new SparseCountMatrix(matrix.cellsCount());
+        matrix.forEachCell(sparse::add);
+        matrix = sparse;
+    }
+
+    private void siftUp(int[] heap, int i) {
+        int v = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compareValues(heap[parent], v) >= 0) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = v;
+    }
+
+    private void siftDown(int[] heap, int size) {
+        int v = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && compareValues(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (compareValues(heap[child], v) <= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = v;
+    }
+
+    private static int[] identity(int size) {
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = i;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,104 @@
+package net.denixx.tctt;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.temporal.IsoFields;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Coarser columns for time markers that start with an ISO date ({@code 2019-01-31}, maybe followed by a time):
+ * counts of all markers of a day, ISO week ({@code 2019-W05}) or month ({@code 2019-01}) are summed into one column.
+ * Bucket names sort in time order like the markers do. Markers that don't start with a date are kept as they are,
+ * so already rolled up markers ({@code 2019-01}) stay the same.
+ */
+public enum DateRollup {
+    DAY,
+    WEEK,
+    MONTH;
+
+    private static final int DATE_LENGTH = "yyyy-mm-dd".length();
+
+    public static DateRollup parse(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    public String bucket(String marker) {
+        LocalDate date = dateOf(marker);
+        if (date == null) {
+            return marker;
+        }
+        switch (this) {
+            case DAY:
+                return marker.substring(0, DATE_LENGTH);
+            case WEEK:
+                return String.format(Locale.ROOT, "%04d-W%02d",
+                        date.get(IsoFields.WEEK_BASED_YEAR), date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+            default:
+                return marker.substring(0, DATE_LENGTH - 3);
+        }
+    }
+
+    private static LocalDate dateOf(String marker) {
+        if (marker.length() < DATE_LENGTH || marker.charAt(4) != '-' || marker.charAt(7) != '-'
+                || (marker.length() > DATE_LENGTH && Character.isDigit(marker.charAt(DATE_LENGTH)))) {
+            return null;
+        }
+        try {
+            return LocalDate.of(digits(marker, 0, 4), digits(marker, 5, 7), digits(marker, 8, 10));
+        } catch (DateTimeException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int digits(String s, int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException(s);
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    /**
+     * Interns markers into a dictionary of their buckets; every distinct marker is parsed only once.
+     */
+    static class Buckets {
+        private final DateRollup rollup;
+        private final StringDictionary target;
+        private final StringDictionary markers = new StringDictionary();
+        private int[] bucketIds = new int[16];
+        private int mapped;
+
+        Buckets(DateRollup rollup, StringDictionary target) {
+            this.rollup = rollup;
+            this.target = target;
+        }
+
+        DateRollup rollup() {
+            return rollup;
+        }
+
+        int intern(String marker) {
+            return bucketId(markers.intern(marker));
+        }
+
+        int intern(byte[] buf, int off, int len) {
+            return bucketId(markers.intern(buf, off, len));
+        }
+
+        private int bucketId(int markerId) {
+            if (markerId == mapped) {
+                // ids are given in order, so a new marker is always the next one
+                if (mapped == bucketIds.length) {
+                    bucketIds = Arrays.copyOf(bucketIds, mapped * 2);
+                }
+                bucketIds[mapped++] = target.intern(rollup.bucket(markers.get(markerId)));
+            }
+            return bucketIds[markerId];
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.denixx.tctt;
+
+import java.util.Arrays;
+
+/**
+ * Row-major long[] matrix with a presence bitmap. Good when most values have counts for most dates.
+ */
+public class DenseCountMatrix implements CountMatrix {
+    private static final int MAX_CELLS = Integer.MAX_VALUE - 8;
+
+    private int rowsCapacity;
+    private int stride;
+    private long[] counts;
+    private long[] present;
+    private long cellsCount;
+
+    public DenseCountMatrix() {
+        this(64, 16);
+    }
+
+    public DenseCountMatrix(int rowsCapacity, int datesCapacity) {
+        this.rowsCapacity = Math.max(rowsCapacity, 1);
+        this.stride = StringDictionary.tableSizeFor(datesCapacity) / 2;
+        this.counts = new long[Math.multiplyExact(this.rowsCapacity, stride)];
+        this.present = new long[(counts.length + 63) >>> 6];
+    }
+
+    @Override
+    public boolean add(int valueId, int dateId, long count) {
+        if (valueId >= rowsCapacity || dateId >= stride) {
+            grow(valueId + 1, dateId + 1);
+        }
+        int idx = valueId * stride + dateId;
+        long bit = 1L << idx;
+        int word = idx >>> 6;
+        counts[idx] += count;
+        if ((present[word] & bit) != 0) {
+            return false;
+        }
+        present[word] |= bit;
+        cellsCount++;
+        return true;
+    }
+
+    /**
+     * @return whether the cell is there or the matrix can grow to it without passing the largest array
+     */
+    public boolean fits(int valueId, int dateId) {
+        return valueId < rowsCapacity && dateId < stride
+                || capacityFor(rowsCapacity, valueId + 1) * capacityFor(stride, dateId + 1) <= MAX_CELLS;
+    }
+
+    @Override
+    public boolean contains(int valueId, int dateId) {
+        if (valueId >= rowsCapacity || dateId >= stride) {
+            return false;
+        }
+        int idx = valueId * stride + dateId;
+        return (present[idx >>> 6] & (1L << idx)) != 0;
+    }
+
+    @Override
+    public long get(int valueId, int dateId) {
+        if (valueId >= rowsCapacity || dateId >= stride) {
+            return 0;
+        }
+        return counts[valueId * stride + dateId];
+    }
+
+    @Override
+    public long cellsCount() {
+        return cellsCount;
+    }
+
+    @Override
+    public long allocatedBytes() {
+        return counts.length * 8L + present.length * 8L;
+    }
+
+    /**
+     * @return what {@code new DenseCountMatrix(rowsCapacity, datesCapacity)} allocates
+     */
+    static long allocatedBytes(int rowsCapacity, int datesCapacity) {
+        long cells = (long) Math.max(rowsCapacity, 1) * (StringDictionary.tableSizeFor(datesCapacity) / 2);
+        return cells * 8 + ((cells + 63) >>> 6) * 8;
+    }
+
+    @Override
+    public void forEachCell(CellConsumer consumer) {
+        for (int word = 0; word < present.length; word++) {
+            long bits = present[word];
+            while (bits != 0) {
+                int idx = (word << 6) + Long.numberOfTrailingZeros(bits);
+                consumer.accept(idx / stride, idx % stride, counts[idx]);
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    private void grow(int minRows, int minDates) {
+        if (!fits(minRows - 1, minDates - 1)) {
+            throw new IllegalStateException("More than " + MAX_CELLS + " cells don't fit in a dense matrix,"
+                    + " use --memory-budget to convert the input by parts");
+        }
+        int newRows = (int) capacityFor(rowsCapacity, minRows);
+        int newStride = (int) capacityFor(stride, minDates);
+
+        if (newStride == stride) {
+            counts = Arrays.copyOf(counts, newRows * stride);
+            present = Arrays.copyOf(present, (counts.length + 63) >>> 6);
+        } else {
+            long[] newCounts = new long[newRows * newStride];
+            long[] newPresent = new long[(newCounts.length + 63) >>> 6];
+            for (int row = 0; row < rowsCapacity; row++) {
+                System.arraycopy(counts, row * stride, newCounts, row * newStride, stride);
+                for (int col = 0; col < stride; col++) {
+                    int idx = row * stride + col;
+                    if ((present[idx >>> 6] & (1L << idx)) != 0) {
+                        int newIdx = row * newStride + col;
+                        newPresent[newIdx >>> 6] |= 1L << newIdx;
+                    }
+                }
+            }
+            counts = newCounts;
+            present = newPresent;
+            stride = newStride;
+        }
+        rowsCapacity = newRows;
+    }
+
+    private static long capacityFor(long capacity, int min) {
+        while (capacity < min) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+}
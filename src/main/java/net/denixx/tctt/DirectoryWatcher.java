@@ -0,0 +1,256 @@
+package net.denixx.tctt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts tables as they appear in a directory, until closed.
+ * <p>
+ * A new or changed *.csv / *.csv.gz file is converted once its size and modification time have stayed
+ * the same for the quiet period, so files still being written are left alone. Files whose output is
+ * already newer are skipped, which makes restarts cheap. Conversions run on a {@link BatchConverter};
+ * at most {@code jobs} run and as many wait, beyond that the watcher stops taking events until a slot
+ * frees up (events that pile up meanwhile end in an overflow, which makes the directory be rescanned).
+ */
+public class DirectoryWatcher implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    public static final long DEFAULT_QUIET_MILLIS = 2000;
+
+    private static final int QUEUED_PER_JOB = 1;
+
+    private final Path dir;
+    private final ConversionOptions options;
+    private final long quietNanos;
+    private final BatchListener listener;
+    private final BatchConverter converter;
+    private final Semaphore slots;
+    private final Map<Path, Pending> pending = new HashMap<>();
+    private final Set<Path> converting = ConcurrentHashMap.newKeySet();
+    private volatile WatchService watchService;
+    private volatile boolean closed;
+
+    /**
+     * @param listener gets the results of all conversions, from worker threads
+     */
+    public DirectoryWatcher(File dir, ConversionOptions options, int jobs, long quietMillis, BatchListener listener) {
+        this.dir = dir.toPath();
+        this.options = options;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.listener = listener;
+        this.converter = new BatchConverter(jobs);
+        this.slots = new Semaphore(jobs * (1 + QUEUED_PER_JOB));
+    }
+
+    /**
+     * Converts what is already there and then what appears, until {@link #close()} or an interrupt.
+     */
+    public void run() throws IOException, InterruptedException {
+        try (WatchService service = dir.getFileSystem().newWatchService()) {
+            watchService = service;
+            if (closed) {
+                return;
+            }
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            LOGGER.info("Watching {} for new tables", dir.toAbsolutePath());
+            rescan();
+
+            while (!closed) {
+                WatchKey key;
+                try {
+                    key = pending.isEmpty() ? service.take() : service.poll(nextCheckNanos(), TimeUnit.NANOSECONDS);
+                } catch (ClosedWatchServiceException e) {
+                    break;
+                }
+                if (key != null) {
+                    handle(key);
+                }
+                convertQuietFiles();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed while registering
+        } finally {
+            watchService = null;
+        }
+    }
+
+    /**
+     * Stops watching and cancels conversions that haven't finished; their partial outputs are removed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        WatchService service = watchService;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                LOGGER.debug("Can't close watch service of {}", dir, e);
+            }
+        }
+        converter.close();
+    }
+
+    /**
+     * Waits for cancelled conversions to clean up after {@link #close()}.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return converter.awaitTermination(timeout, unit);
+    }
+
+    private void handle(WatchKey key) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else {
+                changed(dir.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            LOGGER.error("Directory {} is not watchable anymore!", dir.toAbsolutePath());
+            close();
+            return;
+        }
+        if (overflow) {
+            LOGGER.info("Too many changes in {} at once, rescanning it", dir.toAbsolutePath());
+            rescan();
+        }
+    }
+
+    private void rescan() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                changed(file);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Can't list files in {}!", dir.toAbsolutePath(), e);
+        }
+    }
+
+    private void changed(Path file) {
+        if (isInput(file.getFileName().toString())) {
+            Pending p = pending.computeIfAbsent(file, key -> new Pending());
+            File f = file.toFile();
+            p.changedNanos = System.nanoTime();
+            p.size = f.length();
+            p.modified = f.lastModified();
+        }
+    }
+
+    static boolean isInput(String name) {
+        String lowerCase = name.toLowerCase(Locale.ROOT);
+        return !name.startsWith(".")
+                && (lowerCase.endsWith(".csv") || lowerCase.endsWith(".csv" + Converter.GZIP_SUFFIX))
+                && !name.endsWith(Converter.EXTRACTED_SUFFIX)
+                && !name.endsWith(Converter.EXTRACTED_SUFFIX + Converter.GZIP_SUFFIX);
+    }
+
+    private long nextCheckNanos() {
+        long next = Long.MAX_VALUE;
+        for (Pending p : pending.values()) {
+            next = Math.min(next, p.changedNanos + quietNanos);
+        }
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(100), next - System.nanoTime());
+    }
+
+    private void convertQuietFiles() throws InterruptedException {
+        long now = System.nanoTime();
+        List<File> ready = new ArrayList<>();
+        for (Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Pending> entry = it.next();
+            Path file = entry.getKey();
+            Pending p = entry.getValue();
+            if (now - p.changedNanos < quietNanos || converting.contains(file)) {
+                continue;
+            }
+            File f = file.toFile();
+            if (!f.isFile()) {
+                it.remove();
+                continue;
+            }
+            long size = f.length();
+            long modified = f.lastModified();
+            if (size != p.size || modified != p.modified) {
+                // still being written, without events or with them coalesced
+                p.size = size;
+                p.modified = modified;
+                p.changedNanos = now;
+                continue;
+            }
+            it.remove();
+            if (Converter.extractedFileFor(f, options).lastModified() >= modified) {
+                LOGGER.debug("Output of {} is up to date", f.getPath());
+                continue;
+            }
+            ready.add(f);
+        }
+        Collections.sort(ready);
+        for (File f : ready) {
+            submit(f);
+        }
+    }
+
+    private void submit(File f) throws InterruptedException {
+        if (!slots.tryAcquire()) {
+            LOGGER.info("All workers are busy, waiting before taking {}", f.getPath());
+            slots.acquire();
+        }
+        Path file = f.toPath();
+        converting.add(file);
+        converter.submit(Collections.singletonList(f), options, new BatchListener() {
+            @Override
+            public void fileStarted(File f) {
+                listener.fileStarted(f);
+            }
+
+            @Override
+            public void fileProgress(File f, long bytesRead, long bytesTotal) {
+                listener.fileProgress(f, bytesRead, bytesTotal);
+            }
+
+            @Override
+            public void fileFinished(FileResult result) {
+                listener.fileFinished(result);
+            }
+
+            @Override
+            public void batchFinished(BatchSummary summary) {
+                converting.remove(file);
+                slots.release();
+            }
+        });
+    }
+
+    /**
+     * A file seen changing, with its size and modification time at that moment.
+     */
+    private static class Pending {
+        long changedNanos;
+        long size;
+        long modified;
+    }
+}
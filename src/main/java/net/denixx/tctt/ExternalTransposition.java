@@ -0,0 +1,381 @@
+package net.denixx.tctt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.LongStream;
+
+/**
+ * Transposition within a memory budget:
+ * rows are partitioned by value hash into spill files, every partition is aggregated on its own
+ * (partitions that still don't fit are split again with another hash seed), its rows are written
+ * as a run sorted the same way as the in-memory output, and the runs are k-way merged into the result.
+ * Only the dates dictionary is kept in memory for the whole run.
+ */
+public class ExternalTransposition {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExternalTransposition.class);
+
+    private static final int MAX_PARTITIONS = 256;
+    private static final int UNKNOWN_SIZE_PARTITIONS = 64;
+    private static final int REPARTITION_FANOUT = 8;
+    private static final int MAX_DEPTH = 6;
+    private static final int BUDGET_CHECK_INTERVAL = 1 << 10;
+    private static final int MIN_VALUES_TO_SPLIT = 1 << 10;
+    private static final int MIN_SPILL_BUFFER = 1 << 12;
+    private static final int MAX_SPILL_BUFFER = 1 << 16;
+
+    private final long budget;
+    private final int topN;
+    private final double minAvgByAll;
+    private final Path spillDir;
+    private final ConversionMetrics metrics;
+    private final StringDictionary dates = new StringDictionary();
+    private final DateRollup.Buckets dateBuckets;
+    private final List<Run> runs = new ArrayList<>();
+    private int[] sortedDateIds;
+    private int spillFiles;
+    private int valuesCount;
+    private long cellsCount;
+
+    private ExternalTransposition(ConversionOptions options, Path spillDir, ConversionMetrics metrics) {
+        this.budget = options.getMemoryBudget();
+        this.topN = options.getTopN();
+        this.minAvgByAll = options.getMinAvgByAll();
+        this.dateBuckets = options.getRollup() != null ? new DateRollup.Buckets(options.getRollup(), dates) : null;
+        this.spillDir = spillDir;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param sizeHint input size used to pick the number of partitions, -1 if unknown
+     */
+    public static void transpond(InputStream in, long sizeHint, OutputStream out, ConversionOptions options,
+                                 ConversionMetrics metrics) throws IOException {
+        File parent = options.getSpillDirectory() != null
+                ? options.getSpillDirectory()
+                : new File(System.getProperty("java.io.tmpdir"));
+        Path spillDir = Files.createTempDirectory(parent.toPath(), "tctt-spill-");
+        try {
+            new ExternalTransposition(options, spillDir, metrics).run(in, sizeHint, out);
+        } finally {
+            deleteRecursively(spillDir.toFile());
+        }
+    }
+
+    private void run(InputStream in, long sizeHint, OutputStream out) throws IOException {
+        int partitions = sizeHint < 0
+                ? UNKNOWN_SIZE_PARTITIONS
+                : (int) Math.max(1, Math.min(MAX_PARTITIONS, sizeHint * 2 / budget + 1));
+        LOGGER.info("External mode: budget {} bytes, {} partitions in {}", budget, partitions, spillDir);
+
+        metrics.startPhase(ConversionMetrics.Phase.PARTITION);
+        Partitioner partitioner = new Partitioner(partitions, 0);
+        try {
+            ThreeColumnReader.read(in, true, partitioner);
+        } finally {
+            partitioner.close();
+        }
+
+        sortedDateIds = dates.sortedIds();
+        LOGGER.info("dates count: {}", dates.size());
+        metrics.rows(LongStream.of(partitioner.records).sum());
+
+        metrics.startPhase(ConversionMetrics.Phase.AGGREGATE);
+        for (int i = 0; i < partitions; i++) {
+            aggregate(partitioner.files[i], partitioner.records[i], 1);
+        }
+        metrics.distinct(valuesCount, dates.size(), cellsCount);
+
+        metrics.startPhase(ConversionMetrics.Phase.MERGE);
+        LOGGER.info("Merging {} sorted runs", runs.size());
+        merge(out);
+    }
+
+    private void aggregate(File spill, long records, int depth) throws IOException {
+        if (records == 0) {
+            Files.delete(spill.toPath());
+            return;
+        }
+
+        CountTable table = CountTable.withDates(dates, 16);
+        try (SpillReader rdr = new SpillReader(spill)) {
+            for (long i = 0; i < records; i++) {
+                rdr.next();
+                table.add(table.valueId(rdr.value, 0, rdr.valueLength), rdr.dateId, rdr.count);
+
+                if (i % BUDGET_CHECK_INTERVAL == 0 && depth < MAX_DEPTH
+                        && table.valuesCount() >= MIN_VALUES_TO_SPLIT && table.estimatedBytes() > budget) {
+                    LOGGER.info("Partition {} doesn't fit the budget, splitting it in {}", spill.getName(), REPARTITION_FANOUT);
+                    table = null;
+                    repartition(spill, records, depth);
+                    return;
+                }
+            }
+        }
+        Files.delete(spill.toPath());
+
+        valuesCount += table.valuesCount();
+        cellsCount += table.cellsCount();
+        metrics.tableBytes(table.estimatedBytes());
+        writeRun(table);
+    }
+
+    private void repartition(File spill, long records, int depth) throws IOException {
+        Partitioner partitioner = new Partitioner(REPARTITION_FANOUT, depth);
+        try (SpillReader rdr = new SpillReader(spill)) {
+            for (long i = 0; i < records; i++) {
+                rdr.next();
+                partitioner.add(rdr.dateId, rdr.value, 0, rdr.valueLength, rdr.count);
+            }
+        } finally {
+            partitioner.close();
+        }
+        Files.delete(spill.toPath());
+
+        for (int i = 0; i < REPARTITION_FANOUT; i++) {
+            aggregate(partitioner.files[i], partitioner.records[i], depth + 1);
+        }
+    }
+
+    private void writeRun(CountTable table) throws IOException {
+        // a run never needs more than topN rows: the rest can't get into the merged result
+        int[] sortedValueIds = table.sortedValueIds(topN, minAvgByAll);
+        if (sortedValueIds.length == 0) {
+            return;
+        }
+        TransposedRows rows = table.toRows(sortedDateIds, sortedValueIds);
+
+        Run run = new Run(newSpillFile("run"), sortedValueIds.length);
+        StringWriter sw = new StringWriter();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(run.file), MAX_SPILL_BUFFER));
+             TransposedCsvWriter writer = new TransposedCsvWriter(sw)) {
+            for (int valueId : sortedValueIds) {
+                sw.getBuffer().setLength(0);
+                writer.writeRow(table, rows, valueId, sortedDateIds.length);
+                writer.flush();
+
+                out.writeDouble(table.avgByAll(valueId));
+                out.writeInt(table.filled(valueId));
+                writeBytes(out, table.value(valueId).getBytes(StandardCharsets.UTF_8));
+                writeBytes(out, sw.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        runs.add(run);
+    }
+
+    private void merge(OutputStream target) throws IOException {
+        PriorityQueue<RunCursor> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+                Comparator.comparingDouble((RunCursor c) -> c.avgByAll).reversed()
+                        .thenComparing(Comparator.comparingInt((RunCursor c) -> c.filled).reversed())
+                        .thenComparing(c -> c.value));
+
+        List<RunCursor> cursors = new ArrayList<>(runs.size());
+        try {
+            OutputStream out = new BufferedOutputStream(target, MAX_SPILL_BUFFER);
+            StringWriter header = new StringWriter();
+            try (TransposedCsvWriter writer = new TransposedCsvWriter(header)) {
+                writer.writeHeader(dates::get, sortedDateIds);
+            }
+            out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+
+            for (Run run : runs) {
+                RunCursor cursor = new RunCursor(run);
+                cursors.add(cursor);
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+
+            long written = 0;
+            while (!queue.isEmpty() && (topN <= 0 || written++ < topN)) {
+                RunCursor cursor = queue.poll();
+                out.write(cursor.row, 0, cursor.rowLength);
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+            out.flush();
+        } finally {
+            for (RunCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    private File newSpillFile(String kind) {
+        return spillDir.resolve(kind + "-" + (spillFiles++) + ".bin").toFile();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in, byte[] buf, int length) throws IOException {
+        if (buf.length < length) {
+            buf = Arrays.copyOf(buf, Math.max(length, buf.length * 2));
+        }
+        in.readFully(buf, 0, length);
+        return buf;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) {
+            LOGGER.warn("Can't delete spill file {}", file.getAbsolutePath());
+        }
+    }
+
+    private class Partitioner implements RowSink, Closeable {
+        private final int seed;
+        private final File[] files;
+        private final DataOutputStream[] outs;
+        private final long[] records;
+
+        Partitioner(int partitions, int seed) throws IOException {
+            this.seed = seed;
+            files = new File[partitions];
+            outs = new DataOutputStream[partitions];
+            records = new long[partitions];
+            int bufferSize = (int) Math.max(MIN_SPILL_BUFFER, Math.min(MAX_SPILL_BUFFER, budget / (4L * partitions)));
+            for (int i = 0; i < partitions; i++) {
+                files[i] = newSpillFile("part");
+                outs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i]), bufferSize));
+            }
+        }
+
+        @Override
+        public void add(String date, String value, long count) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            add(dateBuckets != null ? dateBuckets.intern(date) : dates.intern(date), bytes, 0, bytes.length, count);
+        }
+
+        @Override
+        public void add(byte[] buf, int dateOff, int dateLen, int valueOff, int valueLen, long count) {
+            int dateId = dateBuckets != null
+                    ? dateBuckets.intern(buf, dateOff, dateLen)
+                    : dates.intern(buf, dateOff, dateLen);
+            add(dateId, buf, valueOff, valueLen, count);
+        }
+
+        void add(int dateId, byte[] buf, int valueOff, int valueLen, long count) {
+            int partition = Math.floorMod(StringDictionary.mix(StringDictionary.hash(buf, valueOff, valueLen) + seed),
+                    files.length);
+            DataOutputStream out = outs[partition];
+            try {
+                out.writeInt(dateId);
+                out.writeInt(valueLen);
+                out.write(buf, valueOff, valueLen);
+                out.writeLong(count);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't write spill file " + files[partition] + "!", e);
+            }
+            records[partition]++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (DataOutputStream out : outs) {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+    }
+
+    private static class SpillReader implements Closeable {
+        private final DataInputStream in;
+        int dateId;
+        byte[] value = new byte[256];
+        int valueLength;
+        long count;
+
+        SpillReader(File spill) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill), MAX_SPILL_BUFFER));
+        }
+
+        void next() throws IOException {
+            dateId = in.readInt();
+            valueLength = in.readInt();
+            value = readBytes(in, value, valueLength);
+            count = in.readLong();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class Run {
+        final File file;
+        final long rowsCount;
+
+        Run(File file, long rowsCount) {
+            this.file = file;
+            this.rowsCount = rowsCount;
+        }
+    }
+
+    private static class RunCursor implements Closeable {
+        private final DataInputStream in;
+        private long remaining;
+        double avgByAll;
+        int filled;
+        String value;
+        byte[] row = new byte[1024];
+        int rowLength;
+        private byte[] valueBytes = new byte[256];
+
+        RunCursor(Run run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), MIN_SPILL_BUFFER * 4));
+            remaining = run.rowsCount;
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            avgByAll = in.readDouble();
+            filled = in.readInt();
+            int valueLength = in.readInt();
+            valueBytes = readBytes(in, valueBytes, valueLength);
+            value = new String(valueBytes, 0, valueLength, StandardCharsets.UTF_8);
+            rowLength = in.readInt();
+            row = readBytes(in, row, rowLength);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
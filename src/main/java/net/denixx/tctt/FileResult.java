@@ -0,0 +1,34 @@
+package net.denixx.tctt;
+
+import lombok.Value;
+
+import java.io.File;
+
+@Value
+public class FileResult {
+    public enum Status {
+        CONVERTED,
+        REJECTED,
+        FAILED,
+        CANCELLED
+    }
+
+    public enum Cache {
+        /** no cache, or the options can't be cached */
+        OFF,
+        /** the output came from the cache, nothing was parsed */
+        HIT,
+        /** converted and added to the cache */
+        MISS
+    }
+
+    File file;
+    Status status;
+    long millis;
+    Throwable error;
+    /**
+     * Null when the conversion didn't start.
+     */
+    ConversionMetrics metrics;
+    Cache cache;
+}
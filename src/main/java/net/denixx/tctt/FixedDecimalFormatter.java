@@ -0,0 +1,169 @@
+package net.denixx.tctt;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * Formats doubles with exactly 9 fraction digits and no grouping, the same way as
+ * a {@link NumberFormat#getNumberInstance(Locale)} with those settings (HALF_EVEN, locale decimal separator),
+ * without allocating for the usual values: zero and anything from 1e-9 to 2^22.
+ * <p>
+ * Up to 2^22 the gap between neighbouring doubles is less than half of 1e-9, so rounding the exact binary
+ * value gives the same digits as NumberFormat; everything else (negative, non-finite, huge, and tiny values,
+ * which NumberFormat rounds by their shortest decimal form) goes to a private NumberFormat.
+ * Not thread-safe: every writer keeps its own instance.
+ */
+public class FixedDecimalFormatter {
+    public static final int FRACTION_DIGITS = 9;
+
+    private static final double FAST_PATH_MIN = 1e-9;
+    private static final double FAST_PATH_LIMIT = 1 << 22;
+    private static final long FIVE_POW_9 = 1953125L;
+    private static final long TEN_POW_9 = 1000000000L;
+
+    private final NumberFormat fallback;
+    private final boolean fastPath;
+    private final char zeroDigit;
+    private final char decimalSeparator;
+
+    public FixedDecimalFormatter() {
+        this(Locale.getDefault(Locale.Category.FORMAT));
+    }
+
+    public FixedDecimalFormatter(Locale locale) {
+        fallback = NumberFormat.getNumberInstance(locale);
+        fallback.setMinimumFractionDigits(FRACTION_DIGITS);
+        fallback.setGroupingUsed(false);
+
+        if (fallback instanceof DecimalFormat
+                && ((DecimalFormat) fallback).getPositivePrefix().isEmpty()
+                && ((DecimalFormat) fallback).getPositiveSuffix().isEmpty()
+                && fallback.getMaximumFractionDigits() == FRACTION_DIGITS) {
+            DecimalFormatSymbols symbols = ((DecimalFormat) fallback).getDecimalFormatSymbols();
+            fastPath = true;
+            zeroDigit = symbols.getZeroDigit();
+            decimalSeparator = symbols.getDecimalSeparator();
+        } else {
+            fastPath = false;
+            zeroDigit = '0';
+            decimalSeparator = '.';
+        }
+    }
+
+    public String format(double x) {
+        char[] buf = new char[64];
+        int len = format(x, buf, 0);
+        return len >= 0 ? new String(buf, 0, len) : fallback.format(x);
+    }
+
+    /**
+     * Writes the formatted value into {@code buf} (at least 32 chars free from {@code off}).
+     *
+     * @return number of chars written, or -1 if the value has to be formatted by {@link #fallbackFormat}
+     */
+    public int format(double x, char[] buf, int off) {
+        long bits = Double.doubleToRawLongBits(x);
+        if (!fastPath || bits < 0 || !(x < FAST_PATH_LIMIT) || (x < FAST_PATH_MIN && bits != 0)) {
+            // negative (including -0.0), NaN, too big or too small
+            return -1;
+        }
+
+        int exponent = (int) (bits >>> 52) & 0x7FF;
+        long mantissa = bits & ((1L << 52) - 1);
+        if (exponent == 0) {
+            exponent = 1;
+        } else {
+            mantissa |= 1L << 52;
+        }
+        int shift = 1075 - exponent;
+
+        long integerPart;
+        long fraction;
+        if (shift <= 0) {
+            integerPart = mantissa << -shift;
+            fraction = 0;
+        } else {
+            integerPart = shift >= 64 ? 0 : mantissa >>> shift;
+            long fractionBits = shift >= 64 ? mantissa : mantissa & ((1L << shift) - 1);
+            fraction = roundedFraction(fractionBits, shift);
+            if (fraction == TEN_POW_9) {
+                integerPart++;
+                fraction = 0;
+            }
+        }
+
+        int pos = off;
+        pos = appendDigits(integerPart, buf, pos);
+        buf[pos++] = decimalSeparator;
+        for (int i = pos + FRACTION_DIGITS - 1; i >= pos; i--) {
+            buf[i] = (char) (zeroDigit + (int) (fraction % 10));
+            fraction /= 10;
+        }
+        return pos + FRACTION_DIGITS - off;
+    }
+
+    public String fallbackFormat(double x) {
+        return fallback.format(x);
+    }
+
+    /**
+     * @return fractionBits / 2^shift * 1e9 rounded half-even, computed exactly in 128 bits
+     */
+    private static long roundedFraction(long fractionBits, int shift) {
+        // fractionBits * 1e9 / 2^shift == fractionBits * 5^9 / 2^(shift - 9)
+        long a = fractionBits >>> 32;
+        long b = fractionBits & 0xFFFFFFFFL;
+        long ac = a * FIVE_POW_9;
+        long bc = b * FIVE_POW_9;
+        long lo = (ac << 32) + bc;
+        long hi = (ac >>> 32) + (Long.compareUnsigned(lo, bc) < 0 ? 1 : 0);
+
+        int s = shift - 9;
+        if (s <= 0) {
+            return lo << -s;
+        }
+
+        long quotient;
+        if (s >= 128) {
+            quotient = 0;
+        } else if (s >= 64) {
+            quotient = hi >>> (s - 64);
+        } else {
+            quotient = (hi << (64 - s)) | (lo >>> s);
+        }
+
+        int halfBit = s - 1;
+        boolean half = halfBit >= 128 ? false
+                : halfBit >= 64 ? ((hi >>> (halfBit - 64)) & 1) != 0
+                : ((lo >>> halfBit) & 1) != 0;
+        boolean belowHalf;
+        if (halfBit >= 64) {
+            belowHalf = lo != 0 || (halfBit > 64 && (hi & ((1L << (halfBit - 64)) - 1)) != 0);
+        } else {
+            belowHalf = (lo & ((1L << halfBit) - 1)) != 0;
+        }
+
+        if (half && (belowHalf || (quotient & 1) != 0)) {
+            quotient++;
+        }
+        return quotient;
+    }
+
+    private int appendDigits(long value, char[] buf, int pos) {
+        if (value == 0) {
+            buf[pos] = zeroDigit;
+            return pos + 1;
+        }
+        int digits = 0;
+        for (long v = value; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buf[i] = (char) (zeroDigit + (int) (value % 10));
+            value /= 10;
+        }
+        return pos + digits;
+    }
+}
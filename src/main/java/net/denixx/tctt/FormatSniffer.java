@@ -0,0 +1,125 @@
+package net.denixx.tctt;
+
+import org.apache.tika.Tika;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Cheap MIME check of inputs: a file named *.csv whose first KBs are UTF-8 text made of
+ * "time_marker value count" rows (after a header) is {@link Converter#MIME_CSV} without asking Tika.
+ * Anything else goes to Tika, created once on first use and shared by all conversions,
+ * so the decisions (and the types named in rejections) stay the same as Tika's.
+ */
+public class FormatSniffer {
+    static final int HEAD_SIZE = 1 << 12;
+
+    private static final String CSV_EXTENSION = ".csv";
+
+    public static String detect(File f) throws IOException {
+        byte[] head = new byte[HEAD_SIZE];
+        int length = 0;
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+                length += n;
+            }
+        }
+        if (looksLikeTable(head, length, length < head.length, f.getName())) {
+            return Converter.MIME_CSV;
+        }
+        return SharedTika.TIKA.detect(f);
+    }
+
+    /**
+     * Same check for content that is not a file as such (e.g. the unpacked head of a gzipped file).
+     *
+     * @param complete whether the head is the whole content
+     * @param name     file name the content would have
+     */
+    public static String detect(byte[] head, int length, boolean complete, String name) throws IOException {
+        if (looksLikeTable(head, length, complete, name)) {
+            return Converter.MIME_CSV;
+        }
+        return SharedTika.TIKA.detect(new ByteArrayInputStream(head, 0, length), name);
+    }
+
+    /**
+     * True only where Tika would say text/csv too: it goes by the name for text without a known magic.
+     * Text magics sit at the very start (#!, %PDF, BEGIN:VCARD, Article...) or look for tags,
+     * so the fast path takes only a quoted header, no '<', and rows of three space-separated columns
+     * with a numeric third one; other tables are still accepted, by Tika.
+     */
+    static boolean looksLikeTable(byte[] head, int length, boolean complete, String name) {
+        if (!name.toLowerCase(Locale.ROOT).endsWith(CSV_EXTENSION)) {
+            return false;
+        }
+        if (length == 0 || head[0] != '"') {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = head[i];
+            if ((b >= 0 && b < ' ' && b != '\n' && b != '\r' && b != '\t') || b == '<') {
+                return false;
+            }
+        }
+
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate(length);
+        CoderResult result = decoder.decode(ByteBuffer.wrap(head, 0, length), chars, complete);
+        if (result.isError() || (complete && decoder.flush(chars).isError())) {
+            return false;
+        }
+        chars.flip();
+
+        String[] lines = chars.toString().split("\n", -1);
+        // the last line may be cut by the head size
+        int checkedLines = complete ? lines.length : lines.length - 1;
+        int rows = 0;
+        for (int i = 1; i < checkedLines; i++) {
+            String line = lines[i].endsWith("\r") ? lines[i].substring(0, lines[i].length() - 1) : lines[i];
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (!isRow(line)) {
+                return false;
+            }
+            rows++;
+        }
+        return rows > 0;
+    }
+
+    private static boolean isRow(String line) {
+        int firstSpace = line.indexOf(ThreeColumnReader.DELIMITER);
+        int secondSpace = firstSpace < 0 ? -1 : line.indexOf(ThreeColumnReader.DELIMITER, firstSpace + 1);
+        if (secondSpace < 0 || line.indexOf(ThreeColumnReader.DELIMITER, secondSpace + 1) >= 0
+                || line.indexOf('"') >= 0) {
+            return false;
+        }
+        try {
+            Long.parseLong(line.substring(secondSpace + 1));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Holder, so Tika's registries are loaded only when some file really needs them.
+     */
+    private static class SharedTika {
+        static final Tika TIKA = new Tika();
+    }
+}
@@ -0,0 +1,127 @@
+package net.denixx.tctt;
+
+import java.util.Arrays;
+
+/**
+ * Cells of rows that come grouped by value (e.g. sorted by it), stored the way they are written out:
+ * the cells of every value one after another, 12 bytes a cell. Only the row of the last value is open,
+ * its dates are found by a per-date mark instead of a hash; a row is closed for good once a newer value comes.
+ * A value coming back after its row was closed has no place here ({@link #accepts}), the cells have to be
+ * moved into another layout first.
+ */
+public class GroupedCountMatrix implements CountMatrix {
+    private static final int MAX_CELLS = Integer.MAX_VALUE - 8;
+
+    // rowStart[v] for every value up to the open one, whose row ends at cellsCount
+    private int[] rowStart = new int[16];
+    private int openValueId = -1;
+    private int[] dateIds = new int[16];
+    private long[] counts = new long[16];
+    private int cellsCount;
+    // cell of a date in the open row, valid when the date is marked with the open value id
+    private int[] cellOfDate = new int[16];
+    private int[] markOfDate = filled(16);
+
+    /**
+     * @return whether a cell of this value can still be added: its row is open or not started yet
+     */
+    public boolean accepts(int valueId) {
+        return valueId >= openValueId;
+    }
+
+    @Override
+    public boolean add(int valueId, int dateId, long count) {
+        if (valueId != openValueId) {
+            open(valueId);
+        }
+        if (dateId >= markOfDate.length) {
+            int length = Math.max(markOfDate.length * 2, dateId + 1);
+            cellOfDate = Arrays.copyOf(cellOfDate, length);
+            int oldLength = markOfDate.length;
+            markOfDate = Arrays.copyOf(markOfDate, length);
+            Arrays.fill(markOfDate, oldLength, length, -1);
+        } else if (markOfDate[dateId] == valueId) {
+            counts[cellOfDate[dateId]] += count;
+            return false;
+        }
+        if (cellsCount == dateIds.length) {
+            if (cellsCount == MAX_CELLS) {
+                throw new IllegalStateException("More than " + MAX_CELLS + " cells don't fit in memory,"
+                        + " use --memory-budget to convert the input by parts");
+            }
+            int length = (int) Math.min(MAX_CELLS, cellsCount * 2L);
+            dateIds = Arrays.copyOf(dateIds, length);
+            counts = Arrays.copyOf(counts, length);
+        }
+        markOfDate[dateId] = valueId;
+        cellOfDate[dateId] = cellsCount;
+        dateIds[cellsCount] = dateId;
+        counts[cellsCount] = count;
+        cellsCount++;
+        return true;
+    }
+
+    private void open(int valueId) {
+        if (valueId < openValueId) {
+            throw new IllegalStateException("Row of value " + valueId + " is closed");
+        }
+        if (valueId >= rowStart.length) {
+            rowStart = Arrays.copyOf(rowStart, Math.max(rowStart.length * 2, valueId + 1));
+        }
+        // values in between have no cells
+        Arrays.fill(rowStart, openValueId + 1, valueId + 1, cellsCount);
+        openValueId = valueId;
+    }
+
+    @Override
+    public boolean contains(int valueId, int dateId) {
+        return cellOf(valueId, dateId) >= 0;
+    }
+
+    @Override
+    public long get(int valueId, int dateId) {
+        int cell = cellOf(valueId, dateId);
+        return cell >= 0 ? counts[cell] : 0;
+    }
+
+    private int cellOf(int valueId, int dateId) {
+        if (valueId > openValueId || valueId < 0) {
+            return -1;
+        }
+        if (valueId == openValueId) {
+            return dateId < markOfDate.length && markOfDate[dateId] == valueId ? cellOfDate[dateId] : -1;
+        }
+        for (int cell = rowStart[valueId]; cell < rowStart[valueId + 1]; cell++) {
+            if (dateIds[cell] == dateId) {
+                return cell;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long cellsCount() {
+        return cellsCount;
+    }
+
+    @Override
+    public long allocatedBytes() {
+        return rowStart.length * 4L + dateIds.length * 12L + markOfDate.length * 8L;
+    }
+
+    @Override
+    public void forEachCell(CellConsumer consumer) {
+        for (int v = 0; v <= openValueId; v++) {
+            int end = v < openValueId ? rowStart[v + 1] : cellsCount;
+            for (int cell = rowStart[v]; cell < end; cell++) {
+                consumer.accept(v, dateIds[cell], counts[cell]);
+            }
+        }
+    }
+
+    private static int[] filled(int length) {
+        int[] marks = new int[length];
+        Arrays.fill(marks, -1);
+        return marks;
+    }
+}
@@ -0,0 +1,464 @@
+package net.denixx.tctt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Gzip input decompressed off the parsing thread: decompressor threads fill a bounded queue of chunks
+ * and the returned stream hands them to the reader.
+ * <p>
+ * Files made of several gzip members (concatenated, bgzip, pigz --independent...) are cut at member starts
+ * and the parts are decompressed in parallel, each into its own queue, which are read in file order.
+ * A member start is only a guess (the header bytes may occur inside compressed data), so a part that
+ * turns out to be cut inside a member makes the rest of the file go through one sequential decompressor,
+ * from the last good start and skipping what was already delivered.
+ */
+public class GzipInput {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GzipInput.class);
+
+    private static final int CHUNK_SIZE = 1 << 18;
+    private static final int QUEUE_CHUNKS = 8;
+    private static final int INFLATE_BUFFER = 1 << 16;
+    private static final long MIN_PART_SIZE = 1 << 22;
+    private static final int PROBE_SIZE = 1 << 15;
+    private static final long STOP_CHECK_MILLIS = 100;
+    private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+    public static boolean isGzip(File f) throws IOException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            while (magic.hasRemaining() && channel.read(magic) > 0) {
+                // read both bytes
+            }
+            return magic.position() == 2 && isGzipMagic(magic.get(0), magic.get(1));
+        }
+    }
+
+    /**
+     * @param in a stream supporting mark/reset
+     */
+    public static boolean isGzip(InputStream in) throws IOException {
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        in.reset();
+        return b1 >= 0 && isGzipMagic((byte) b0, (byte) b1);
+    }
+
+    private static boolean isGzipMagic(byte b0, byte b1) {
+        return b0 == (byte) 0x1f && b1 == (byte) 0x8b;
+    }
+
+    /**
+     * Decompresses a gzip stream on a separate thread. Closing the result doesn't close {@code compressed}.
+     */
+    public static InputStream open(InputStream compressed) {
+        List<Part> parts = new ArrayList<>(1);
+        parts.add(new Part(0, () -> new MembersInputStream(compressed)));
+        return new PartsInputStream(parts, null);
+    }
+
+    /**
+     * Decompresses a gzip file with up to {@code threads} decompressor threads.
+     */
+    public static InputStream open(File f, int threads, ProgressListener progress) throws IOException {
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            AtomicLong bytesRead = new AtomicLong();
+            List<Long> starts = memberStarts(channel, size, threads);
+            if (starts.size() > 1) {
+                LOGGER.info("Decompressing {} in {} parts", f.getPath(), starts.size());
+            }
+
+            List<Part> parts = new ArrayList<>(starts.size());
+            for (int i = 0; i < starts.size(); i++) {
+                long start = starts.get(i);
+                long end = i + 1 < starts.size() ? starts.get(i + 1) : size;
+                parts.add(new Part(start, () -> new ProgressInputStream(
+                        new ChannelRangeInputStream(channel, start, end), bytesRead, size, progress)));
+            }
+            return new PartsInputStream(parts, channel) {
+                @Override
+                InputStream sequentialFrom(long start) {
+                    return new ProgressInputStream(new ChannelRangeInputStream(channel, start, size),
+                            bytesRead, size, progress);
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return 0 and the likely starts of members near every 1/threads of the file
+     */
+    private static List<Long> memberStarts(FileChannel channel, long size, int threads) throws IOException {
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        int parts = (int) Math.min(threads, size / MIN_PART_SIZE);
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        for (int i = 1; i < parts; i++) {
+            long from = Math.max(size * i / parts, starts.get(starts.size() - 1) + 1);
+            long limit = size * (i + 1) / parts;
+            long start = findMemberStart(channel, buf, from, limit, size);
+            if (start >= 0) {
+                starts.add(start);
+            }
+        }
+        return starts;
+    }
+
+    private static long findMemberStart(FileChannel channel, ByteBuffer buf, long from, long limit, long size)
+            throws IOException {
+        long pos = from;
+        while (pos < limit) {
+            buf.clear();
+            int read = channel.read(buf, pos);
+            if (read < 4) {
+                return -1;
+            }
+            for (int i = 0; i + 3 < read; i++) {
+                // magic, deflate, no reserved flags
+                if (buf.get(i) == (byte) 0x1f && buf.get(i + 1) == (byte) 0x8b && buf.get(i + 2) == 8
+                        && (buf.get(i + 3) & 0xE0) == 0 && inflates(channel, pos + i, size)) {
+                    return pos + i;
+                }
+            }
+            pos += read - 3;
+        }
+        return -1;
+    }
+
+    private static boolean inflates(FileChannel channel, long start, long size) {
+        try (InputStream in = new GZIPInputStream(new ChannelRangeInputStream(channel, start, size), PROBE_SIZE)) {
+            byte[] probe = new byte[PROBE_SIZE];
+            int total = 0;
+            int n;
+            while (total < probe.length && (n = in.read(probe, total, probe.length - total)) > 0) {
+                total += n;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private static class Chunk {
+        static final Chunk END = new Chunk(new byte[0]);
+
+        final byte[] data;
+        int length;
+        IOException error;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * A range of the compressed input decompressed by its own thread into its own queue.
+     */
+    private static class Part implements Runnable {
+        final long start;
+        final Source source;
+        final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(QUEUE_CHUNKS + 2);
+        // set by the reader instead of interrupting: an interrupt in a channel read closes the shared channel
+        volatile boolean stopped;
+        Thread thread;
+
+        Part(long start, Source source) {
+            this.start = start;
+            this.source = source;
+        }
+
+        void start() {
+            thread = new Thread(this, "tctt-gunzip-" + THREAD_IDS.incrementAndGet());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Makes the thread end after its current read; it puts nothing more into the queue.
+         */
+        void stop() {
+            stopped = true;
+            full.clear();
+        }
+
+        /**
+         * @return false if the part was stopped meanwhile
+         */
+        private boolean deliver(Chunk chunk) throws InterruptedException {
+            while (!stopped) {
+                if (full.offer(chunk, STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            try (InputStream in = new GZIPInputStream(source.open(), INFLATE_BUFFER)) {
+                while (!stopped) {
+                    Chunk chunk = free.poll();
+                    if (chunk == null) {
+                        chunk = new Chunk(new byte[CHUNK_SIZE]);
+                    }
+                    int length = 0;
+                    int n;
+                    while (length < CHUNK_SIZE && (n = in.read(chunk.data, length, CHUNK_SIZE - length)) > 0) {
+                        length += n;
+                    }
+                    if (length == 0) {
+                        break;
+                    }
+                    chunk.length = length;
+                    if (!deliver(chunk)) {
+                        return;
+                    }
+                }
+                deliver(Chunk.END);
+            } catch (InterruptedException | InterruptedIOException e) {
+                // the reading thread is gone
+            } catch (IOException e) {
+                if (stopped) {
+                    // the channel was closed by the reader
+                    return;
+                }
+                Chunk failed = new Chunk(new byte[0]);
+                failed.error = e;
+                try {
+                    deliver(failed);
+                } catch (InterruptedException ignored) {
+                    // the reading thread is gone
+                }
+            }
+        }
+    }
+
+    private static class PartsInputStream extends InputStream {
+        private final List<Part> parts;
+        private final AutoCloseable resource;
+        private int partIndex;
+        private long deliveredFromPart;
+        private Chunk chunk;
+        private int chunkPos;
+        private InputStream sequential;
+        private boolean eof;
+
+        PartsInputStream(List<Part> parts, AutoCloseable resource) {
+            this.parts = parts;
+            this.resource = resource;
+            for (Part part : parts) {
+                part.start();
+            }
+        }
+
+        /**
+         * Fallback when a part doesn't decompress on its own; null if there is nothing to fall back to.
+         */
+        InputStream sequentialFrom(long start) {
+            return null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) > 0 ? one[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!eof) {
+                if (sequential != null) {
+                    int n = sequential.read(b, off, len);
+                    if (n < 0) {
+                        eof = true;
+                    }
+                    return n;
+                }
+                if (chunk != null && chunkPos < chunk.length) {
+                    int n = Math.min(len, chunk.length - chunkPos);
+                    System.arraycopy(chunk.data, chunkPos, b, off, n);
+                    chunkPos += n;
+                    deliveredFromPart += n;
+                    return n;
+                }
+                nextChunk();
+            }
+            return -1;
+        }
+
+        private void nextChunk() throws IOException {
+            Part part = parts.get(partIndex);
+            if (chunk != null && chunk.data.length == CHUNK_SIZE) {
+                part.free.offer(chunk);
+            }
+            chunk = null;
+            chunkPos = 0;
+
+            Chunk next;
+            try {
+                next = part.full.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Decompression is cancelled");
+            }
+
+            if (next == Chunk.END) {
+                partIndex++;
+                deliveredFromPart = 0;
+                eof = partIndex == parts.size();
+            } else if (next.error != null) {
+                fallBack(part, next.error);
+            } else {
+                chunk = next;
+            }
+        }
+
+        private void fallBack(Part part, IOException error) throws IOException {
+            boolean cutMember = error instanceof EOFException || error instanceof ZipException;
+            InputStream rest = partIndex + 1 < parts.size() && cutMember ? sequentialFrom(part.start) : null;
+            if (rest == null) {
+                throw error;
+            }
+            LOGGER.info("Part at byte {} is not a whole set of gzip members, decompressing the rest sequentially",
+                    part.start);
+            for (int i = partIndex; i < parts.size(); i++) {
+                parts.get(i).stop();
+            }
+            sequential = new GZIPInputStream(rest, INFLATE_BUFFER);
+            long toSkip = deliveredFromPart;
+            while (toSkip > 0) {
+                long skipped = sequential.skip(toSkip);
+                if (skipped <= 0) {
+                    throw new EOFException("Gzip input is shorter on the second pass");
+                }
+                toSkip -= skipped;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Part part : parts) {
+                part.stop();
+            }
+            try {
+                if (sequential != null) {
+                    sequential.close();
+                }
+            } finally {
+                if (resource != null) {
+                    try {
+                        resource.close();
+                    } catch (IOException | RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps GZIPInputStream going through all members of a pipe: it looks for the next member only
+     * when something is available, which a pipe may not have yet, so this waits for a byte or the end.
+     * Doesn't close the underlying stream.
+     */
+    private static class MembersInputStream extends FilterInputStream {
+        MembersInputStream(InputStream in) {
+            super(in.markSupported() ? in : new BufferedInputStream(in));
+        }
+
+        @Override
+        public int available() throws IOException {
+            int available = in.available();
+            if (available > 0) {
+                return available;
+            }
+            in.mark(1);
+            int b = in.read();
+            in.reset();
+            return b < 0 ? 0 : 1;
+        }
+
+        @Override
+        public void close() {
+            // the caller owns the stream
+        }
+    }
+
+    /**
+     * Reads a byte range of a channel with positional reads, so several of them can share one channel.
+     */
+    private static class ChannelRangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private long pos;
+        private final long end;
+
+        ChannelRangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) > 0 ? one[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos)), pos);
+            if (n > 0) {
+                pos += n;
+            }
+            return n;
+        }
+
+        /**
+         * GZIPInputStream looks for another member only when something is available.
+         */
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - pos);
+        }
+    }
+}
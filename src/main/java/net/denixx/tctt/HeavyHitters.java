@@ -0,0 +1,331 @@
+package net.denixx.tctt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Approximate mode for inputs with too many distinct values to keep: finds the values with the biggest sums
+ * (avgByAll is the sum over the number of dates) in two passes and fixed memory.
+ * <p>
+ * The first pass runs the weighted Space-Saving algorithm over the values: a fixed number of counters,
+ * a value without one takes over the smallest counter (whose count it inherits as its possible error).
+ * Every value whose sum is bigger than the smallest counter ends up with a counter, and that minimum
+ * is at most (sum of all counts) / counters. The second pass counts the candidates exactly, per date,
+ * and only them; all dates are kept, so averages are the same as in the exact mode.
+ * If the sums of the best values beat the smallest counter, the top is exact, and the log says so.
+ * Negative counts never earn a counter, but are counted exactly in the second pass.
+ */
+public class HeavyHitters implements RowSink {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HeavyHitters.class);
+
+    private static final int NO_COUNTER = -1;
+    private static final int CANDIDATES_PER_VALUE = 64;
+    private static final int MIN_COUNTERS = 1 << 16;
+    private static final int MAX_DEFAULT_COUNTERS = 1 << 22;
+
+    private final byte[][] keys;
+    private final int[] keyLengths;
+    private final int[] hashes;
+    private final long[] counts;
+    private final long[] errors;
+    // min-heap of counters by count, and where every counter is in it
+    private final int[] heap;
+    private final int[] heapPositions;
+    private final int[] slots;
+    private int size;
+    private long totalWeight;
+
+    public HeavyHitters(int counters) {
+        keys = new byte[counters][];
+        keyLengths = new int[counters];
+        hashes = new int[counters];
+        counts = new long[counters];
+        errors = new long[counters];
+        heap = new int[counters];
+        heapPositions = new int[counters];
+        slots = new int[StringDictionary.tableSizeFor(counters)];
+        Arrays.fill(slots, NO_COUNTER);
+    }
+
+    /**
+     * Counters for the top {@code top} values when not given: plenty of spare candidates, within 4M counters.
+     */
+    public static int defaultCounters(int top) {
+        return (int) Math.min(MAX_DEFAULT_COUNTERS, Math.max(MIN_COUNTERS, (long) top * CANDIDATES_PER_VALUE));
+    }
+
+    /**
+     * Runs both passes over the input.
+     *
+     * @return table with all dates and only the candidate values; write it with topN of at most {@code top}
+     */
+    public static CountTable aggregate(InputSource input, int top, int counters, DateRollup rollup,
+                                       ConversionMetrics metrics) throws IOException {
+        metrics.startPhase(ConversionMetrics.Phase.SKETCH);
+        HeavyHitters sketch = new HeavyHitters(counters);
+        try (InputStream in = input.open()) {
+            ThreeColumnReader.read(in, true, sketch);
+        }
+        long threshold = sketch.minCount();
+        LOGGER.info("Sketch: {} candidates in {} counters, total of counts {}, smallest counter {}",
+                sketch.size, counters, sketch.totalWeight, threshold);
+
+        metrics.startPhase(ConversionMetrics.Phase.READ);
+        // up to millions of candidates: the matrix grows (and turns sparse) with the cells found, not sized up front
+        CountTable table = new CountTable();
+        table.rollUp(rollup);
+        try (InputStream in = input.open()) {
+            ThreeColumnReader.read(in, true, sketch.new CandidateCounter(table));
+        }
+
+        long[] bestSums = bestSums(table, top);
+        long kthSum = bestSums.length > 0 ? bestSums[bestSums.length - 1] : Long.MAX_VALUE;
+        if (bestSums.length < top && sketch.size == counters || kthSum <= threshold) {
+            LOGGER.warn("The top {} is approximate: values left out may have sums up to {} (avgByAll up to {}), "
+                            + "the best candidates go down to {}; give more counters for an exact top",
+                    top, threshold, (double) threshold / Math.max(1, table.datesCount()), kthSum);
+        } else {
+            LOGGER.info("The top {} is exact: values left out have sums of at most {}, the best ones at least {}",
+                    top, threshold, kthSum);
+        }
+        return table;
+    }
+
+    private static long[] bestSums(CountTable table, int top) {
+        long[] sums = new long[table.valuesCount()];
+        for (int v = 0; v < sums.length; v++) {
+            sums[v] = table.sum(v);
+        }
+        Arrays.sort(sums);
+        int n = Math.min(top, sums.length);
+        long[] best = new long[n];
+        for (int i = 0; i < n; i++) {
+            best[i] = sums[sums.length - 1 - i];
+        }
+        return best;
+    }
+
+    @Override
+    public void add(String date, String value, long count) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        add(bytes, 0, bytes.length, count);
+    }
+
+    @Override
+    public void add(byte[] buf, int dateOff, int dateLen, int valueOff, int valueLen, long count) {
+        add(buf, valueOff, valueLen, count);
+    }
+
+    private void add(byte[] buf, int off, int len, long count) {
+        long weight = Math.max(0, count);
+        totalWeight += weight;
+        int h = StringDictionary.hash(buf, off, len);
+        int slot = slotOf(buf, off, len, h);
+        int counter = slots[slot];
+        if (counter != NO_COUNTER) {
+            counts[counter] += weight;
+            siftDown(heapPositions[counter]);
+            return;
+        }
+
+        if (size < keys.length) {
+            counter = size++;
+            heap[counter] = counter;
+            heapPositions[counter] = counter;
+            counts[counter] = weight;
+            errors[counter] = 0;
+            setKey(counter, buf, off, len, h);
+            slots[slot] = counter;
+            siftUp(counter);
+        } else if (weight > 0) {
+            // the smallest counter goes to the new value, its count becomes the possible overestimate
+            counter = heap[0];
+            removeSlot(slotOf(keys[counter], 0, keyLengths[counter], hashes[counter]));
+            errors[counter] = counts[counter];
+            counts[counter] += weight;
+            setKey(counter, buf, off, len, h);
+            slots[slotOf(buf, off, len, h)] = counter;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * @return the count no value without a counter can exceed, 0 while there are free counters
+     */
+    public long minCount() {
+        return size < keys.length || size == 0 ? 0 : counts[heap[0]];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long totalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * @return the counter of a value, or -1 if it has none
+     */
+    public int find(byte[] buf, int off, int len) {
+        return slots[slotOf(buf, off, len, StringDictionary.hash(buf, off, len))];
+    }
+
+    public long count(int counter) {
+        return counts[counter];
+    }
+
+    public long error(int counter) {
+        return errors[counter];
+    }
+
+    private void setKey(int counter, byte[] buf, int off, int len, int h) {
+        if (keys[counter] == null || keys[counter].length < len) {
+            keys[counter] = new byte[Math.max(len, 16)];
+        }
+        System.arraycopy(buf, off, keys[counter], 0, len);
+        keyLengths[counter] = len;
+        hashes[counter] = h;
+    }
+
+    private int slotOf(byte[] buf, int off, int len, int h) {
+        int mask = slots.length - 1;
+        int i = h & mask;
+        while (true) {
+            int counter = slots[i];
+            if (counter == NO_COUNTER
+                    || hashes[counter] == h && keyLengths[counter] == len && keyEquals(counter, buf, off, len)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(int counter, byte[] buf, int off, int len) {
+        byte[] key = keys[counter];
+        for (int i = 0; i < len; i++) {
+            if (key[i] != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Linear probing removal: later entries of the probe chain move back into the hole.
+     */
+    private void removeSlot(int hole) {
+        int mask = slots.length - 1;
+        int i = hole;
+        int j = hole;
+        while (true) {
+            j = (j + 1) & mask;
+            int counter = slots[j];
+            if (counter == NO_COUNTER) {
+                break;
+            }
+            int home = hashes[counter] & mask;
+            boolean staysPut = i <= j ? i < home && home <= j : i < home || home <= j;
+            if (!staysPut) {
+                slots[i] = counter;
+                i = j;
+            }
+        }
+        slots[i] = NO_COUNTER;
+    }
+
+    private void siftUp(int pos) {
+        int counter = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[counter]) {
+                break;
+            }
+            place(heap[parent], pos);
+            pos = parent;
+        }
+        place(counter, pos);
+    }
+
+    private void siftDown(int pos) {
+        int counter = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[heap[child]] >= counts[counter]) {
+                break;
+            }
+            place(heap[child], pos);
+            pos = child;
+        }
+        place(counter, pos);
+    }
+
+    private void place(int counter, int pos) {
+        heap[pos] = counter;
+        heapPositions[counter] = pos;
+    }
+
+    @FunctionalInterface
+    public interface InputSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Second pass: exact counts of the values that have a counter, every date interned.
+     */
+    private class CandidateCounter implements RowSink {
+        private final CountTable table;
+        private final int[] valueIds;
+
+        CandidateCounter(CountTable table) {
+            this.table = table;
+            this.valueIds = new int[size];
+            Arrays.fill(valueIds, -1);
+        }
+
+        @Override
+        public void add(String date, String value, long count) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            add(date, bytes, count);
+        }
+
+        private void add(String date, byte[] value, long count) {
+            int dateId = table.dateId(date);
+            int counter = find(value, 0, value.length);
+            if (counter != NO_COUNTER) {
+                table.add(valueId(counter), dateId, count);
+            }
+            table.addRows(1);
+        }
+
+        @Override
+        public void add(byte[] buf, int dateOff, int dateLen, int valueOff, int valueLen, long count) {
+            int dateId = table.dateId(buf, dateOff, dateLen);
+            int counter = find(buf, valueOff, valueLen);
+            if (counter != NO_COUNTER) {
+                table.add(valueId(counter), dateId, count);
+            }
+            table.addRows(1);
+        }
+
+        private int valueId(int counter) {
+            int valueId = valueIds[counter];
+            if (valueId < 0) {
+                valueId = table.valueId(keys[counter], 0, keyLengths[counter]);
+                valueIds[counter] = valueId;
+            }
+            return valueId;
+        }
+    }
+}
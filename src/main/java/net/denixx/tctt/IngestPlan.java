@@ -0,0 +1,263 @@
+package net.denixx.tctt;
+
+import lombok.Value;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Outcome of a pre-pass over an input: how many rows, distinct values, dates and non-empty cells it has,
+ * so the table can be sized once, in the right layout ({@link #newTable()}), and an input too big
+ * for the heap is turned down before any of it is aggregated ({@link #peakBytes(int)}).
+ * <p>
+ * Distinct numbers are counted by {@link HyperLogLog}s, nothing is interned. When only the first bytes
+ * of an input are sampled, rows are scaled by size, and distinct numbers by how fast new ones still showed up
+ * in the second half of the sample: steadily (the key the input is sorted by) or less and less often.
+ * Values of a long tail, which first show up late, are missed.
+ */
+@Value
+public class IngestPlan {
+    /**
+     * Estimates are about 1% off (both ways): room for that, so a table never has to grow.
+     */
+    private static final double HEADROOM = 1.05;
+
+    long sampledBytes;
+    /**
+     * Whether the whole input was read, so nothing is extrapolated.
+     */
+    boolean complete;
+    long rows;
+    long values;
+    long dates;
+    long cells;
+    double valueLength;
+    double dateLength;
+
+    /**
+     * Reads the rows of {@code in} (all of them, or about {@code sampleBytes} of them) and estimates its table.
+     * The stream is not closed.
+     *
+     * @param inputBytes  size of the input, -1 if unknown (then it is read whole)
+     * @param sampleBytes how much of the input to read, 0 for all of it
+     * @param rollup      dates rollup, null for none
+     */
+    public static IngestPlan estimate(InputStream in, long inputBytes, long sampleBytes, DateRollup rollup)
+            throws IOException {
+        long limit = inputBytes > 0 && sampleBytes > 0 && sampleBytes < inputBytes ? sampleBytes : Long.MAX_VALUE;
+        SampleInputStream sample = new SampleInputStream(in, limit);
+        Sampler sampler = new Sampler(rollup, sample, limit / 2);
+        ThreeColumnReader.read(sample, true, sampler);
+
+        long values = sampler.values.estimate();
+        long dates = sampler.dates.estimate();
+        long cells = sampler.cells.estimate();
+        long rows = sampler.rows;
+        boolean complete = !sample.cut;
+        if (!complete && sampler.half != null) {
+            rows = Math.round(sampler.rows * ((double) inputBytes / sample.bytes));
+            values = extrapolate(values, sampler.half.values.estimate(), sampler, rows);
+            dates = extrapolate(dates, sampler.half.dates.estimate(), sampler, rows);
+            cells = extrapolate(cells, sampler.half.cells.estimate(), sampler, rows);
+        }
+        // every value and date has a cell, no more cells than rows or than the whole matrix
+        values = Math.min(values, rows);
+        dates = Math.min(dates, rows);
+        cells = Math.max(cells, Math.max(values, dates));
+        cells = Math.min(cells, Math.min(rows, values * dates));
+
+        double rowsRead = Math.max(1, sampler.rows);
+        return new IngestPlan(sample.bytes, complete, rows, values, dates, cells,
+                sampler.valueBytes / rowsRead, sampler.dateBytes / rowsRead);
+    }
+
+    /**
+     * New keys are taken to get rarer by the same factor from one stretch of rows to the next as they did
+     * from the first half of the sample to the second one: a geometric series, or a straight line
+     * when the second half had as many new keys as the first.
+     */
+    private static long extrapolate(long seen, long seenAtHalf, Sampler sampler, long totalRows) {
+        long rowsAfterHalf = sampler.rows - sampler.half.rows;
+        if (rowsAfterHalf <= 0 || seenAtHalf <= 1) {
+            return seen;
+        }
+        double stretches = Math.max(0, totalRows - sampler.rows) / (double) rowsAfterHalf;
+        double fresh = Math.max(0, seen - seenAtHalf);
+        // the key of the first row is there from the start, and not found in the first half
+        double ratio = fresh / (seenAtHalf - 1);
+        double more = ratio >= 1
+                ? fresh * stretches
+                : fresh * ratio * (1 - Math.pow(ratio, stretches)) / (1 - ratio);
+        return seen + Math.round(more);
+    }
+
+    public boolean isSparse() {
+        return CountTable.isSparse(values, dates, cells);
+    }
+
+    /**
+     * @return empty table sized for the estimated numbers, with some room to spare
+     */
+    public CountTable newTable() {
+        int v = expectedValues();
+        int d = expectedDates();
+        return CountTable.presized(v, Math.round(v * valueLength), d, Math.round(d * dateLength), expectedCells());
+    }
+
+    /**
+     * Heap the conversion is expected to need at its peak: the table, and the rows it is transposed into
+     * while the table is still there. Parallel chunks hold about as much again until they are merged.
+     */
+    public long peakBytes(int parallelism) {
+        int v = expectedValues();
+        int d = expectedDates();
+        long tableBytes = CountTable.estimatedBytes(v, Math.round(v * valueLength), d, Math.round(d * dateLength),
+                expectedCells());
+        long rowsBytes = cells * 12 + values * 8;
+        return (parallelism > 1 ? 2 * tableBytes : tableBytes) + rowsBytes;
+    }
+
+    private int expectedValues() {
+        return (int) Math.min(Integer.MAX_VALUE - 8, Math.round(values * HEADROOM));
+    }
+
+    private int expectedDates() {
+        return (int) Math.min(Integer.MAX_VALUE - 8, Math.round(dates * HEADROOM));
+    }
+
+    private long expectedCells() {
+        return Math.round(cells * HEADROOM);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s ~%d rows, ~%d values, ~%d dates, ~%d cells (%.1f%% filled), %s layout",
+                complete ? "read whole," : "sampled " + sampledBytes + " bytes,",
+                rows, values, dates, cells, 100.0 * cells / Math.max(1, values * dates),
+                isSparse() ? "sparse" : "dense");
+    }
+
+    /**
+     * Distinct counters of the rows read so far.
+     */
+    private static class Counts {
+        final HyperLogLog values;
+        final HyperLogLog dates;
+        final HyperLogLog cells;
+        final long rows;
+
+        Counts(HyperLogLog values, HyperLogLog dates, HyperLogLog cells, long rows) {
+            this.values = values;
+            this.dates = dates;
+            this.cells = cells;
+            this.rows = rows;
+        }
+    }
+
+    private static class Sampler implements RowSink {
+        final HyperLogLog values = new HyperLogLog();
+        final HyperLogLog dates = new HyperLogLog();
+        final HyperLogLog cells = new HyperLogLog();
+        private final DateRollup.Buckets buckets;
+        private final SampleInputStream sample;
+        private final long halfBytes;
+        long rows;
+        long valueBytes;
+        long dateBytes;
+        /**
+         * Counters as they were at the half of a limited sample.
+         */
+        Counts half;
+
+        Sampler(DateRollup rollup, SampleInputStream sample, long halfBytes) {
+            this.buckets = rollup != null ? new DateRollup.Buckets(rollup, new StringDictionary()) : null;
+            this.sample = sample;
+            this.halfBytes = halfBytes;
+        }
+
+        @Override
+        public void add(String date, String value, long count) {
+            byte[] dateBytes = date.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            count(dateBytes, 0, dateBytes.length, valueBytes, 0, valueBytes.length);
+        }
+
+        @Override
+        public void add(byte[] buf, int dateOff, int dateLen, int valueOff, int valueLen, long count) {
+            count(buf, dateOff, dateLen, buf, valueOff, valueLen);
+        }
+
+        private void count(byte[] dateBuf, int dateOff, int dateLen, byte[] valueBuf, int valueOff, int valueLen) {
+            if (half == null && sample.bytes >= halfBytes) {
+                half = new Counts(values.copy(), dates.copy(), cells.copy(), rows);
+            }
+            int valueHash = StringDictionary.hash(valueBuf, valueOff, valueLen);
+            // rolled up, the column is the bucket
+            int dateHash = buckets != null
+                    ? StringDictionary.mix(buckets.intern(dateBuf, dateOff, dateLen) + 1)
+                    : StringDictionary.hash(dateBuf, dateOff, dateLen);
+            values.add(HyperLogLog.mix(valueHash));
+            dates.add(HyperLogLog.mix(dateHash));
+            cells.add(HyperLogLog.mix(((long) valueHash << 32) | (dateHash & 0xFFFFFFFFL)));
+            rows++;
+            valueBytes += valueLen;
+            dateBytes += dateLen;
+        }
+    }
+
+    /**
+     * Ends at the first line break after {@code limit} bytes that is not inside a quoted field.
+     */
+    private static class SampleInputStream extends FilterInputStream {
+        private final long limit;
+        long bytes;
+        boolean cut;
+        /**
+         * Whether an odd number of quotes was passed: an escaped quote ("") flips it twice.
+         */
+        private boolean quoted;
+
+        SampleInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) > 0 ? one[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (cut) {
+                return -1;
+            }
+            int n = super.read(b, off, len);
+            if (n > 0 && limit != Long.MAX_VALUE) {
+                int from = off + (int) Math.min(n, Math.max(0, limit - bytes));
+                for (int i = off; i < off + n; i++) {
+                    if (b[i] == '"') {
+                        quoted = !quoted;
+                    } else if (b[i] == '\n' && !quoted && i >= from) {
+                        n = i - off + 1;
+                        cut = true;
+                        break;
+                    }
+                }
+            }
+            if (n > 0) {
+                bytes += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package net.denixx.tctt;
+
+/**
+ * Stable merge sort of int ids with a primitive comparator, so ids never get boxed.
+ */
+public final class IntSort {
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    private IntSort() {
+    }
+
+    @FunctionalInterface
+    public interface IntComparator {
+        int compare(int a, int b);
+    }
+
+    public static void sort(int[] a, IntComparator c) {
+        sort(a, 0, a.length, c);
+    }
+
+    public static void sort(int[] a, int from, int to, IntComparator c) {
+        if (to - from < 2) {
+            return;
+        }
+        int[] buf = a.clone();
+        mergeSort(buf, a, from, to, c);
+    }
+
+    private static void mergeSort(int[] src, int[] dst, int from, int to, IntComparator c) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int x = dst[i];
+                int j = i - 1;
+                while (j >= from && c.compare(dst[j], x) > 0) {
+                    dst[j + 1] = dst[j];
+                    j--;
+                }
+                dst[j + 1] = x;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(dst, src, from, mid, c);
+        mergeSort(dst, src, mid, to, c);
+
+        if (c.compare(src[mid - 1], src[mid]) <= 0) {
+            System.arraycopy(src, from, dst, from, to - from);
+            return;
+        }
+        for (int i = from, p = from, q = mid; i < to; i++) {
+            if (q >= to || p < mid && c.compare(src[p], src[q]) <= 0) {
+                dst[i] = src[p++];
+            } else {
+                dst[i] = src[q++];
+            }
+        }
+    }
+}
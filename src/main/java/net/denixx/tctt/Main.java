@@ -4,48 +4,512 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
 
+    /**
+     * File name meaning "read stdin, write stdout".
+     */
+    private static final String STDIO = "-";
+
+    private static final long SHUTDOWN_WAIT_SECONDS = 10;
+
+    private static final long DEFAULT_MAX_BODY = 1L << 30;
+
     public static void main(String[] args) {
         if (args.length < 1) {
             GraphicInterface gui = new GraphicInterface();
             return;
         }
 
-        String filename = args[0];
-        if (filename == null || filename.trim().isEmpty()) {
-            LOGGER.error("Give me a file or --gui !");
+        ConversionOptions.ConversionOptionsBuilder options = ConversionOptions.builder();
+        List<String> filenames = new ArrayList<>();
+        File watchDir = null;
+        File mergeTarget = null;
+        InetSocketAddress serveAddress = null;
+        long maxBody = DEFAULT_MAX_BODY;
+        int jobs = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if ("--gui".equalsIgnoreCase(arg)) {
+                GraphicInterface gui = new GraphicInterface();
+                return;
+            }
+
+            if ("--threads".equalsIgnoreCase(arg)) {
+                Integer threads = intArgument(args, ++i, arg);
+                if (threads == null) {
+                    return;
+                }
+                options.parallelism(threads);
+                continue;
+            }
+
+            if ("--jobs".equalsIgnoreCase(arg)) {
+                Integer jobsArg = intArgument(args, ++i, arg);
+                if (jobsArg == null) {
+                    return;
+                }
+                jobs = jobsArg;
+                continue;
+            }
+
+            if ("--top".equalsIgnoreCase(arg)) {
+                Integer top = intArgument(args, ++i, arg);
+                if (top == null) {
+                    return;
+                }
+                options.topN(top);
+                continue;
+            }
+
+            if ("--rollup".equalsIgnoreCase(arg)) {
+                if (++i >= args.length) {
+                    LOGGER.error("Option {} needs day, week or month!", arg);
+                    return;
+                }
+                try {
+                    options.rollup(DateRollup.parse(args[i]));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.error("Option {} needs day, week or month, got {}!", arg, args[i]);
+                    return;
+                }
+                continue;
+            }
+
+            if ("--approximate-top".equalsIgnoreCase(arg)) {
+                Integer top = intArgument(args, ++i, arg);
+                if (top == null) {
+                    return;
+                }
+                options.approximateTop(top);
+                continue;
+            }
+
+            if ("--sketch-counters".equalsIgnoreCase(arg)) {
+                Integer counters = intArgument(args, ++i, arg);
+                if (counters == null) {
+                    return;
+                }
+                options.sketchCounters(counters);
+                continue;
+            }
+
+            if ("--min-avg".equalsIgnoreCase(arg)) {
+                if (++i >= args.length) {
+                    LOGGER.error("Option {} needs a number!", arg);
+                    return;
+                }
+                try {
+                    options.minAvgByAll(Double.parseDouble(args[i].replace(',', '.')));
+                } catch (NumberFormatException e) {
+                    LOGGER.error("Option {} needs a number, got {}!", arg, args[i]);
+                    return;
+                }
+                continue;
+            }
+
+            if ("--memory-budget".equalsIgnoreCase(arg)) {
+                Long budget = sizeArgument(args, ++i, arg);
+                if (budget == null) {
+                    return;
+                }
+                options.memoryBudget(budget);
+                continue;
+            }
+
+            if ("--spill-dir".equalsIgnoreCase(arg)) {
+                if (++i >= args.length) {
+                    LOGGER.error("Option {} needs a directory!", arg);
+                    return;
+                }
+                File spillDir = new File(args[i]);
+                if (!spillDir.isDirectory()) {
+                    LOGGER.error("This is not a directory {}!", spillDir.getPath());
+                    return;
+                }
+                options.spillDirectory(spillDir);
+                continue;
+            }
+
+            if ("--save-state".equalsIgnoreCase(arg)) {
+                options.saveState(true);
+                continue;
+            }
+
+            if ("--append-to".equalsIgnoreCase(arg)) {
+                if (++i >= args.length) {
+                    LOGGER.error("Option {} needs a file!", arg);
+                    return;
+                }
+                options.appendTo(new File(args[i]));
+                continue;
+            }
+
+            if ("--watch".equalsIgnoreCase(arg)) {
+                if (++i >= args.length) {
+                    LOGGER.error("Option {} needs a directory!", arg);
+                    return;
+                }
+                watchDir = new File(args[i]);
+                if (!watchDir.isDirectory()) {
+                    LOGGER.error("This is not a directory {}!", watchDir.getPath());
+                    return;
+                }
+                continue;
+            }
+
+            if ("--merge".equalsIgnoreCase(arg)) {
+                if (++i >= args.length) {
+                    LOGGER.error("Option {} needs a file name for the result!", arg);
+                    return;
+                }
+                mergeTarget = new File(args[i]);
+                continue;
+            }
+
+            if ("--serve".equalsIgnoreCase(arg)) {
+                if (++i >= args.length) {
+                    LOGGER.error("Option {} needs a port or host:port!", arg);
+                    return;
+                }
+                serveAddress = address(args[i]);
+                if (serveAddress == null) {
+                    LOGGER.error("Option {} needs a port or host:port, got {}!", arg, args[i]);
+                    return;
+                }
+                continue;
+            }
+
+            if ("--max-body".equalsIgnoreCase(arg)) {
+                Long size = sizeArgument(args, ++i, arg);
+                if (size == null) {
+                    return;
+                }
+                maxBody = size;
+                continue;
+            }
+
+            if ("--cache".equalsIgnoreCase(arg)) {
+                if (++i >= args.length) {
+                    LOGGER.error("Option {} needs a directory!", arg);
+                    return;
+                }
+                options.cacheDirectory(new File(args[i]));
+                continue;
+            }
+
+            if ("--cache-size".equalsIgnoreCase(arg)) {
+                Long size = sizeArgument(args, ++i, arg);
+                if (size == null) {
+                    return;
+                }
+                options.cacheMaxBytes(size);
+                continue;
+            }
+
+            if ("--estimate".equalsIgnoreCase(arg)) {
+                options.estimate(true);
+                continue;
+            }
+
+            if ("--estimate-sample".equalsIgnoreCase(arg)) {
+                Long size = sizeArgument(args, ++i, arg);
+                if (size == null) {
+                    return;
+                }
+                options.estimate(true);
+                options.estimateSampleBytes(size);
+                continue;
+            }
+
+            if ("--binary-output".equalsIgnoreCase(arg)) {
+                options.binaryOutput(true);
+                continue;
+            }
+
+            if ("--gzip-output".equalsIgnoreCase(arg)) {
+                options.gzipOutput(true);
+                continue;
+            }
+
+            filenames.add(arg);
+        }
+
+        ConversionOptions conversionOptions = options.build();
+        if (conversionOptions.getMemoryBudget() > 0
+                && (conversionOptions.isSaveState() || conversionOptions.getAppendTo() != null)) {
+            LOGGER.error("--memory-budget can't be used with --save-state or --append-to!");
+            return;
+        }
+        if (conversionOptions.getApproximateTop() > 0
+                && (conversionOptions.getMemoryBudget() > 0 || conversionOptions.isSaveState()
+                || conversionOptions.getAppendTo() != null)) {
+            LOGGER.error("--approximate-top can't be used with --memory-budget, --save-state or --append-to!");
+            return;
+        }
+        if (conversionOptions.isEstimate()
+                && (conversionOptions.getMemoryBudget() > 0 || conversionOptions.getApproximateTop() > 0)) {
+            LOGGER.error("--estimate can't be used with --memory-budget or --approximate-top, "
+                    + "they keep within their memory anyway!");
+            return;
+        }
+        if (conversionOptions.isBinaryOutput()
+                && (conversionOptions.isGzipOutput() || conversionOptions.getMemoryBudget() > 0)) {
+            LOGGER.error("--binary-output can't be used with --gzip-output or --memory-budget!");
             return;
         }
+        if (conversionOptions.getAppendTo() != null) {
+            // every file is added to the same state, one after another
+            jobs = 1;
+        }
 
-        if ("--gui".equalsIgnoreCase(filename)) {
-            GraphicInterface gui = new GraphicInterface();
+        if (serveAddress != null) {
+            if (!filenames.isEmpty() || watchDir != null || mergeTarget != null) {
+                LOGGER.error("--serve can't be mixed with files, --watch or --merge!");
+                return;
+            }
+            if (conversionOptions.getMemoryBudget() > 0 || conversionOptions.isSaveState()
+                    || conversionOptions.getAppendTo() != null || conversionOptions.isGzipOutput()
+                    || conversionOptions.getApproximateTop() > 0 || conversionOptions.isBinaryOutput()
+                    || conversionOptions.isEstimate()) {
+                LOGGER.error("--serve converts in memory, exactly, to CSV, without states or estimates; "
+                        + "gzip is asked for by Accept-Encoding!");
+                return;
+            }
+            serve(serveAddress, conversionOptions, jobs, maxBody);
             return;
         }
 
-        File f = new File(filename);
-        if (!f.exists()) {
-            LOGGER.error("No file at {}!", f.getPath());
+        if (watchDir != null) {
+            if (!filenames.isEmpty() || mergeTarget != null) {
+                LOGGER.error("--watch can't be mixed with files or --merge!");
+                return;
+            }
+            watch(watchDir, conversionOptions, jobs);
             return;
         }
-        if (!f.isFile()) {
-            LOGGER.error("This is not a file {}!", f.getPath());
+
+        if (filenames.contains(STDIO)) {
+            if (filenames.size() > 1 || mergeTarget != null) {
+                LOGGER.error("{} (stdin to stdout) can't be mixed with files or --merge!", STDIO);
+                return;
+            }
+            if (conversionOptions.isSaveState() || conversionOptions.getAppendTo() != null
+                    || conversionOptions.getApproximateTop() > 0 || conversionOptions.isEstimate()) {
+                LOGGER.error("{} (stdin to stdout) can't be used with --save-state, --append-to, "
+                        + "--approximate-top or --estimate!", STDIO);
+                return;
+            }
+            try {
+                Converter.transpond(System.in, System.out, conversionOptions);
+                System.out.flush();
+            } catch (IOException e) {
+                LOGGER.error("Conversion error for stdin!", e);
+                System.exit(1);
+            }
             return;
         }
-        if (!f.canRead()) {
-            LOGGER.error("File at {} is not readable! (permissions?)", f.getPath());
+
+        List<File> files = new ArrayList<>();
+        for (String filename : filenames) {
+            if (filename == null || filename.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                List<File> expanded = BatchConverter.expand(filename);
+                if (expanded.isEmpty()) {
+                    LOGGER.error("No files match {}!", filename);
+                }
+                files.addAll(expanded);
+            } catch (IOException e) {
+                LOGGER.error("Can't list files for {}!", filename, e);
+            }
+        }
+
+        if (files.isEmpty()) {
+            LOGGER.error("Give me a file or --gui !");
+            return;
+        }
+
+        if (mergeTarget != null) {
+            merge(files, mergeTarget, conversionOptions, jobs);
+            return;
+        }
+
+        BatchSummary summary;
+        try (BatchConverter converter = new BatchConverter(Math.min(jobs, files.size()))) {
+            summary = converter.submit(files, conversionOptions, new BatchListener() {
+                @Override
+                public void fileFinished(FileResult result) {
+                    if (files.size() > 1 && result.getStatus() == FileResult.Status.CONVERTED) {
+                        LOGGER.info("Converted {} in {} ms", result.getFile().getPath(), result.getMillis());
+                    }
+                }
+            }).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (files.size() > 1) {
+            LOGGER.info("Batch summary: {}", summary);
+        }
+        if (summary.count(FileResult.Status.CONVERTED) > 0) {
+            LOGGER.info("Done!");
+        }
+    }
+
+    private static void merge(List<File> shards, File target, ConversionOptions options, int jobs) {
+        if (options.getMemoryBudget() > 0 || options.getAppendTo() != null || options.getApproximateTop() > 0
+                || options.isEstimate()) {
+            LOGGER.error("--merge can't be used with --memory-budget, --append-to, --approximate-top or --estimate!");
             return;
         }
+        for (File shard : shards) {
+            if (!BatchConverter.checkFile(shard)) {
+                return;
+            }
+        }
+        try {
+            if (Converter.transpondShards(shards, target, options, jobs, ProgressListener.NONE)) {
+                LOGGER.info("Done!");
+            }
+        } catch (IOException e) {
+            LOGGER.error("Conversion error for shards of {}!", target.getPath(), e);
+        }
+    }
+
+    /**
+     * Runs until the JVM is stopped (Ctrl+C), then lets cancelled conversions remove their partial output.
+     */
+    private static void watch(File dir, ConversionOptions options, int jobs) {
+        DirectoryWatcher watcher = new DirectoryWatcher(dir, options, jobs, DirectoryWatcher.DEFAULT_QUIET_MILLIS,
+                new BatchListener() {
+                    @Override
+                    public void fileFinished(FileResult result) {
+                        if (result.getStatus() == FileResult.Status.CONVERTED) {
+                            LOGGER.info("Converted {} in {} ms", result.getFile().getPath(), result.getMillis());
+                        }
+                    }
+                });
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            watcher.close();
+            try {
+                watcher.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "tctt-watch-shutdown"));
+        try {
+            watcher.run();
+        } catch (IOException e) {
+            LOGGER.error("Can't watch {}!", dir.getPath(), e);
+            watcher.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            watcher.close();
+        }
+    }
 
+    /**
+     * Serves until the JVM is stopped (Ctrl+C).
+     */
+    private static void serve(InetSocketAddress address, ConversionOptions options, int jobs, long maxBody) {
+        ConversionServer server;
         try {
-            Converter.transpondTable(f);
-        } catch (Exception e) {
-            LOGGER.error("Conversion error for file {}!", f.getPath(), e);
+            server = new ConversionServer(address, options, jobs, maxBody, ConversionServer.defaultExecutor());
+        } catch (IOException e) {
+            LOGGER.error("Can't listen at {}!", address, e);
             return;
         }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close, "tctt-serve-shutdown"));
+        server.start();
+    }
+
+    /**
+     * Parses "8080" (loopback only) or "host:8080".
+     */
+    private static InetSocketAddress address(String arg) {
+        int colon = arg.lastIndexOf(':');
+        try {
+            int port = Integer.parseInt(arg.substring(colon + 1));
+            if (port < 0 || port > 0xFFFF) {
+                return null;
+            }
+            return colon < 0
+                    ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                    : new InetSocketAddress(arg.substring(0, colon), port);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Integer intArgument(String[] args, int i, String option) {
+        if (i >= args.length) {
+            LOGGER.error("Option {} needs a number!", option);
+            return null;
+        }
+        try {
+            int value = Integer.parseInt(args[i]);
+            if (value < 1) {
+                LOGGER.error("Option {} needs a positive number, got {}!", option, args[i]);
+                return null;
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            LOGGER.error("Option {} needs a number, got {}!", option, args[i]);
+            return null;
+        }
+    }
+
+    /**
+     * Parses sizes like 1048576, 512k, 256M or 2g.
+     */
+    private static Long sizeArgument(String[] args, int i, String option) {
+        if (i >= args.length) {
+            LOGGER.error("Option {} needs a size!", option);
+            return null;
+        }
+        try {
+            long value = parseSize(args[i]);
+            if (value < 1) {
+                LOGGER.error("Option {} needs a positive size, got {}!", option, args[i]);
+                return null;
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            LOGGER.error("Option {} needs a size like 512m, got {}!", option, args[i]);
+            return null;
+        }
+    }
 
-        LOGGER.info("Done!");
+    /**
+     * @return bytes of a size like 4096, 512k, 512m or 1g
+     * @throws NumberFormatException if it is not one
+     */
+    static long parseSize(String size) {
+        size = size.trim().toLowerCase();
+        long multiplier = 1;
+        if (size.endsWith("k")) {
+            multiplier = 1L << 10;
+        } else if (size.endsWith("m")) {
+            multiplier = 1L << 20;
+        } else if (size.endsWith("g")) {
+            multiplier = 1L << 30;
+        }
+        if (multiplier > 1) {
+            size = size.substring(0, size.length() - 1);
+        }
+        return Long.parseLong(size) * multiplier;
     }
 }
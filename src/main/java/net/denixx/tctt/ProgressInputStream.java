@@ -0,0 +1,65 @@
+package net.denixx.tctt;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts bytes read into a counter (possibly shared by several streams of one file)
+ * and reports every percent of progress to a {@link ProgressListener}.
+ */
+public class ProgressInputStream extends FilterInputStream {
+    private static final int STEPS = 100;
+
+    private final AtomicLong bytesRead;
+    private final long bytesTotal;
+    private final long step;
+    private final ProgressListener listener;
+
+    public ProgressInputStream(InputStream in, long bytesTotal, ProgressListener listener) {
+        this(in, new AtomicLong(), bytesTotal, listener);
+    }
+
+    public ProgressInputStream(InputStream in, AtomicLong bytesRead, long bytesTotal, ProgressListener listener) {
+        super(in);
+        this.bytesRead = bytesRead;
+        this.bytesTotal = bytesTotal;
+        this.step = Math.max(1, bytesTotal / STEPS);
+        this.listener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            count(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0) {
+            count(skipped);
+        }
+        return skipped;
+    }
+
+    private void count(long n) {
+        long after = bytesRead.addAndGet(n);
+        if ((after - n) / step != after / step) {
+            listener.progress(after, bytesTotal);
+        }
+    }
+}
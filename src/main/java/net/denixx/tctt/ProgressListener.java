@@ -0,0 +1,12 @@
+package net.denixx.tctt;
+
+/**
+ * Receives how much of an input file has been read. May be called from several threads.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+    ProgressListener NONE = (bytesRead, bytesTotal) -> {
+    };
+
+    void progress(long bytesRead, long bytesTotal);
+}
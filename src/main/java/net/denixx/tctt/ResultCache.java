@@ -0,0 +1,329 @@
+package net.denixx.tctt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * On-disk cache of outputs, keyed by the SHA-256 of the input's content and the options that shape the output,
+ * so a file converted before (under any name) is not parsed again: its output is copied from the cache, or left
+ * alone if it is still the one the cache wrote.
+ * <p>
+ * Inputs are hashed only when their size or modification time differ from the last time they were seen.
+ * Entries are {@code <key>.out} files; the least recently used ones are removed once they take more than
+ * the size limit. Several JVMs may share a directory: files are replaced by atomic moves, the worst case
+ * of a race is a missed hit.
+ */
+public class ResultCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultCache.class);
+
+    /**
+     * Goes into every key: bump it when the output format changes.
+     */
+    private static final int FORMAT_VERSION = 1;
+    private static final String ENTRY_SUFFIX = ".out";
+    private static final String INDEX_FILE = "index";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * A file modified this recently may change again within the same timestamp, so it is hashed every time.
+     */
+    private static final long RACY_MILLIS = 2000;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Map<File, ResultCache> OPEN = new HashMap<>();
+
+    private final File dir;
+    private final long maxBytes;
+    /**
+     * Inputs and outputs seen by path: size and modification time, and the content hash of an input
+     * or the key of the entry an output was written from.
+     */
+    private final Map<String, Seen> seen = new HashMap<>();
+
+    private ResultCache(File dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir.toPath());
+        loadIndex();
+    }
+
+    /**
+     * @return the cache in {@code options}' directory, shared by all conversions in this JVM; null if none is set
+     */
+    public static ResultCache of(ConversionOptions options) throws IOException {
+        if (options.getCacheDirectory() == null) {
+            return null;
+        }
+        File dir = options.getCacheDirectory().getAbsoluteFile();
+        synchronized (OPEN) {
+            ResultCache cache = OPEN.get(dir);
+            if (cache == null) {
+                cache = new ResultCache(dir, options.getCacheMaxBytes());
+                OPEN.put(dir, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Outputs that depend on more than the input and the options (states, appends) are not cached.
+     */
+    public static boolean isCacheable(ConversionOptions options) {
+        return !options.isSaveState() && options.getAppendTo() == null;
+    }
+
+    /**
+     * @return key of the output of {@code f} converted with {@code options}
+     */
+    public String key(File f, ConversionOptions options) throws IOException {
+        String contentHash = contentHash(f);
+        MessageDigest digest = sha256();
+        digest.update(contentHash.getBytes(StandardCharsets.US_ASCII));
+        digest.update(fingerprint(options).getBytes(StandardCharsets.UTF_8));
+        return hex(digest.digest());
+    }
+
+    /**
+     * Makes {@code output} the cached result for {@code key}, if there is one.
+     *
+     * @return false on a miss
+     */
+    public boolean restore(String key, File output) throws IOException {
+        File entry = entryFile(key);
+        synchronized (this) {
+            Seen written = seen.get(output.getAbsolutePath());
+            if (!entry.isFile()) {
+                return false;
+            }
+            // touched on every hit, so the modification time orders entries by last use
+            entry.setLastModified(System.currentTimeMillis());
+            if (written != null && written.id.equals(key) && written.matches(output)) {
+                LOGGER.info("Cache hit for {}, the output is up to date", output.getPath());
+                return true;
+            }
+        }
+
+        Path tmp = createTempFile(output.getAbsoluteFile().getParentFile(), output.getName());
+        try {
+            Files.copy(entry.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+            move(tmp, output.toPath());
+        } catch (NoSuchFileException e) {
+            // evicted by another process meanwhile
+            return false;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        LOGGER.info("Cache hit for {}, output copied from the cache", output.getPath());
+        synchronized (this) {
+            seen.put(output.getAbsolutePath(), new Seen(output, key));
+            saveIndex();
+        }
+        return true;
+    }
+
+    /**
+     * Adds a freshly written output under {@code key}, evicting old entries beyond the size limit.
+     */
+    public void store(String key, File output) throws IOException {
+        File entry = entryFile(key);
+        Path tmp = createTempFile(dir, entry.getName());
+        try {
+            Files.copy(output.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+            move(tmp, entry.toPath());
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        synchronized (this) {
+            seen.put(output.getAbsolutePath(), new Seen(output, key));
+            evict(entry);
+            saveIndex();
+        }
+    }
+
+    private String contentHash(File f) throws IOException {
+        String path = f.getAbsolutePath();
+        synchronized (this) {
+            Seen input = seen.get(path);
+            if (input != null && input.matches(f)) {
+                return input.id;
+            }
+        }
+
+        // size and time before reading, so a file changed meanwhile is hashed again next time
+        Seen input = new Seen(f, null);
+        MessageDigest digest = sha256();
+        byte[] buf = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+        }
+        input.id = hex(digest.digest());
+        if (System.currentTimeMillis() - input.modified >= RACY_MILLIS) {
+            synchronized (this) {
+                seen.put(path, input);
+            }
+        }
+        return input.id;
+    }
+
+    /**
+     * Options that change the output bytes, and the locale that formats the averages.
+     */
+    private static String fingerprint(ConversionOptions options) {
+        return "v" + FORMAT_VERSION
+                + ";top=" + options.getTopN()
+                + ";minAvg=" + options.getMinAvgByAll()
+                + ";rollup=" + options.getRollup()
+                + ";approximateTop=" + options.getApproximateTop()
+                + ";sketchCounters=" + options.getSketchCounters()
+                + ";gzip=" + options.isGzipOutput()
+                + ";binary=" + options.isBinaryOutput()
+                + ";locale=" + Locale.getDefault(Locale.Category.FORMAT).toLanguageTag();
+    }
+
+    private File entryFile(String key) {
+        return new File(dir, key + ENTRY_SUFFIX);
+    }
+
+    private void evict(File keep) {
+        File[] entries = dir.listFiles((d, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        long total = 0;
+        List<File> byLastUse = new ArrayList<>(entries.length);
+        for (File entry : entries) {
+            total += entry.length();
+            byLastUse.add(entry);
+        }
+        byLastUse.sort(Comparator.comparingLong(File::lastModified));
+        for (File entry : byLastUse) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (entry.equals(keep)) {
+                continue;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                total -= length;
+                LOGGER.debug("Evicted {} from the cache", entry.getName());
+            }
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        File index = new File(dir, INDEX_FILE);
+        if (!index.isFile()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(index.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // size, modified, id, path (the only part that may contain tabs)
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4) {
+                    continue;
+                }
+                try {
+                    seen.put(fields[3], new Seen(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                } catch (NumberFormatException e) {
+                    LOGGER.debug("Skipping broken cache index line {}", line);
+                }
+            }
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        Path tmp = createTempFile(dir, INDEX_FILE);
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Seen> e : seen.entrySet()) {
+                    Seen s = e.getValue();
+                    if (new File(e.getKey()).exists()) {
+                        out.write(s.size + "\t" + s.modified + "\t" + s.id + "\t" + e.getKey());
+                        out.newLine();
+                    }
+                }
+            }
+            move(tmp, new File(dir, INDEX_FILE).toPath());
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Unique in the directory, whichever thread or JVM asks; never taken for an entry.
+     */
+    private static Path createTempFile(File dir, String name) throws IOException {
+        return Files.createTempFile(dir.toPath(), name + ".", TMP_SUFFIX);
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static class Seen {
+        final long size;
+        final long modified;
+        String id;
+
+        Seen(long size, long modified, String id) {
+            this.size = size;
+            this.modified = modified;
+            this.id = id;
+        }
+
+        Seen(File f, String id) {
+            this(f.length(), f.lastModified(), id);
+        }
+
+        boolean matches(File f) {
+            return f.length() == size && f.lastModified() == modified;
+        }
+    }
+}
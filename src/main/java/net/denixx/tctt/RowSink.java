@@ -0,0 +1,14 @@
+package net.denixx.tctt;
+
+/**
+ * Receiver of parsed input rows.
+ */
+public interface RowSink {
+
+    void add(String date, String value, long count);
+
+    /**
+     * Row given as slices of a UTF-8 buffer, which is reused once the call returns.
+     */
+    void add(byte[] buf, int dateOff, int dateLen, int valueOff, int valueLen, long count);
+}
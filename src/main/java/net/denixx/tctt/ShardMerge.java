@@ -0,0 +1,122 @@
+package net.denixx.tctt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ingest of several shards of one table: every shard is parsed into its own {@link CountTable} on a fork-join
+ * worker, and the tables are merged as a balanced tree, so independent pairs are merged at the same time
+ * and a row is merged log2(shards) times at most.
+ */
+public class ShardMerge {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardMerge.class);
+
+    /**
+     * Switches the metrics to the MERGE phase once all shards are parsed.
+     *
+     * @param rollup dates rollup, null for none
+     */
+    public static CountTable ingest(List<File> shards, int parallelism, DateRollup rollup, ProgressListener progress,
+                                    ConversionMetrics metrics) throws IOException {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards to merge");
+        }
+        long size = 0;
+        for (File shard : shards) {
+            size += shard.length();
+        }
+        LOGGER.info("Reading {} shards with {} threads", shards.size(), parallelism);
+
+        AtomicLong bytesRead = new AtomicLong();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            long total = size;
+            List<ForkJoinTask<CountTable>> tasks = new ArrayList<>(shards.size());
+            for (File shard : shards) {
+                tasks.add(pool.submit(() -> read(shard, rollup, bytesRead, total, progress)));
+            }
+
+            CountTable[] tables = new CountTable[tasks.size()];
+            for (int i = 0; i < tables.length; i++) {
+                tables[i] = tasks.get(i).join();
+            }
+
+            metrics.startPhase(ConversionMetrics.Phase.MERGE);
+            return pool.invoke(new TreeMerge(tables, 0, tables.length));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static CountTable read(File shard, DateRollup rollup, AtomicLong bytesRead, long bytesTotal,
+                                   ProgressListener progress) {
+        CountTable table = new CountTable();
+        table.rollUp(rollup);
+        try (InputStream file = new ProgressInputStream(new FileInputStream(shard), bytesRead, bytesTotal, progress)) {
+            if (GzipInput.isGzip(shard)) {
+                try (InputStream unpacked = GzipInput.open(file)) {
+                    ThreeColumnReader.read(unpacked, true, table);
+                }
+            } else {
+                ThreeColumnReader.read(file, true, table);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LOGGER.debug("Shard {}: {} rows, {} values, {} dates",
+                shard.getPath(), table.rowsCount(), table.valuesCount(), table.datesCount());
+        return table;
+    }
+
+    /**
+     * Merges tables [from, to), each pair into the bigger table, the halves in parallel.
+     */
+    private static class TreeMerge extends RecursiveTask<CountTable> {
+        private static final long serialVersionUID = 1L;
+
+        private final CountTable[] tables;
+        private final int from;
+        private final int to;
+
+        TreeMerge(CountTable[] tables, int from, int to) {
+            this.tables = tables;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected CountTable compute() {
+            if (to - from == 1) {
+                CountTable table = tables[from];
+                tables[from] = null;
+                return table;
+            }
+            int middle = (from + to) >>> 1;
+            TreeMerge left = new TreeMerge(tables, from, middle);
+            left.fork();
+            CountTable right = new TreeMerge(tables, middle, to).compute();
+            CountTable merged = left.join();
+            if (merged.cellsCount() < right.cellsCount()) {
+                CountTable smaller = merged;
+                merged = right;
+                right = smaller;
+            }
+            merged.merge(right);
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.denixx.tctt;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash of (value id, date id) keys packed into a long. Good when the matrix is mostly empty.
+ */
+public class SparseCountMatrix implements CountMatrix {
+    private static final long NO_KEY = -1L;
+    private static final int MAX_TABLE_SIZE = 1 << 30;
+
+    private long[] keys;
+    private long[] counts;
+    private long cellsCount;
+
+    public SparseCountMatrix() {
+        this(16);
+    }
+
+    public SparseCountMatrix(long expectedCells) {
+        int tableSize = tableSizeFor(expectedCells);
+        keys = new long[tableSize];
+        counts = new long[tableSize];
+        Arrays.fill(keys, NO_KEY);
+    }
+
+    @Override
+    public boolean add(int valueId, int dateId, long count) {
+        long key = key(valueId, dateId);
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                counts[i] += count;
+                return false;
+            }
+            if (k == NO_KEY) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        counts[i] = count;
+        cellsCount++;
+        if (cellsCount * 4 > keys.length * 3L) {
+            if (keys.length == MAX_TABLE_SIZE) {
+                throw new IllegalStateException("More than " + cellsCount + " cells don't fit in a sparse matrix,"
+                        + " use --memory-budget to convert the input by parts");
+            }
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(int valueId, int dateId) {
+        return slotOf(key(valueId, dateId)) >= 0;
+    }
+
+    @Override
+    public long get(int valueId, int dateId) {
+        int slot = slotOf(key(valueId, dateId));
+        return slot >= 0 ? counts[slot] : 0;
+    }
+
+    @Override
+    public long cellsCount() {
+        return cellsCount;
+    }
+
+    @Override
+    public long allocatedBytes() {
+        return keys.length * 16L;
+    }
+
+    /**
+     * @return what {@code new SparseCountMatrix(expectedCells)} allocates
+     */
+    static long allocatedBytes(long expectedCells) {
+        return tableSizeFor(expectedCells) * 16L;
+    }
+
+    @Override
+    public void forEachCell(CellConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            long k = keys[i];
+            if (k != NO_KEY) {
+                consumer.accept((int) (k >>> 32), (int) k, counts[i]);
+            }
+        }
+    }
+
+    private int slotOf(long key) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                return i;
+            }
+            if (k == NO_KEY) {
+                return -1;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void rehash(int newTableSize) {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        keys = new long[newTableSize];
+        counts = new long[newTableSize];
+        Arrays.fill(keys, NO_KEY);
+        int mask = newTableSize - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long k = oldKeys[j];
+            if (k != NO_KEY) {
+                int i = mix(k) & mask;
+                while (keys[i] != NO_KEY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = k;
+                counts[i] = oldCounts[j];
+            }
+        }
+    }
+
+    private static int tableSizeFor(long expectedCells) {
+        int tableSize = 16;
+        while (tableSize < expectedCells * 2 && tableSize < MAX_TABLE_SIZE) {
+            tableSize <<= 1;
+        }
+        return tableSize;
+    }
+
+    private static long key(int valueId, int dateId) {
+        return ((long) valueId << 32) | (dateId & 0xFFFFFFFFL);
+    }
+
+    private static int mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -0,0 +1,207 @@
+package net.denixx.tctt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interns strings into dense int ids (0, 1, 2...) in order of first appearance.
+ * Keys are kept as UTF-8 bytes too, so raw input slices can be looked up without decoding them.
+ */
+public class StringDictionary {
+    private static final int NO_ID = -1;
+    private static final int MAX_ARENA = Integer.MAX_VALUE - 8;
+
+    private String[] strings;
+    private int[] hashes;
+    private int[] offsets;
+    private byte[] arena;
+    private int arenaSize;
+    private int[] slots;
+    private int size;
+
+    public StringDictionary() {
+        this(16);
+    }
+
+    public StringDictionary(int expectedSize) {
+        this(expectedSize, Math.max(expectedSize, 16) * 16L);
+    }
+
+    /**
+     * @param expectedKeyBytes expected total length of the keys in UTF-8
+     */
+    public StringDictionary(int expectedSize, long expectedKeyBytes) {
+        int capacity = Math.max(expectedSize, 16);
+        strings = new String[capacity];
+        hashes = new int[capacity];
+        offsets = new int[capacity + 1];
+        arena = new byte[(int) Math.min(Math.max(expectedKeyBytes, 16), MAX_ARENA)];
+        slots = new int[tableSizeFor(expectedSize)];
+        Arrays.fill(slots, NO_ID);
+    }
+
+    public int intern(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return intern(bytes, 0, bytes.length, s);
+    }
+
+    /**
+     * Looks up UTF-8 bytes; a String is created only when the key is new.
+     */
+    public int intern(byte[] buf, int off, int len) {
+        return intern(buf, off, len, null);
+    }
+
+    /**
+     * Interns key {@code id} of another dictionary without re-encoding it.
+     */
+    public int intern(StringDictionary other, int id) {
+        int off = other.offsets[id];
+        return intern(other.arena, off, other.offsets[id + 1] - off, other.strings[id]);
+    }
+
+    public int find(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int slot = slotOf(bytes, 0, bytes.length, hash(bytes, 0, bytes.length));
+        return slots[slot];
+    }
+
+    /**
+     * @return whether key {@code id} is exactly these UTF-8 bytes
+     */
+    public boolean keyEquals(int id, byte[] buf, int off, int len) {
+        return offsets[id + 1] - offsets[id] == len && rangeEquals(arena, offsets[id], buf, off, len);
+    }
+
+    public String get(int id) {
+        return strings[id];
+    }
+
+    /**
+     * @return ids in lexicographical order of their strings
+     */
+    public int[] sortedIds() {
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = i;
+        }
+        IntSort.sort(ids, (a, b) -> strings[a].compareTo(strings[b]));
+        return ids;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long estimatedBytes() {
+        // String object with its char array is about 56 bytes plus 2 bytes per char
+        return arena.length + (arenaSize * 2L) + size * 56L + strings.length * 16L + slots.length * 4L;
+    }
+
+    /**
+     * Same estimate as {@link #estimatedBytes()} for a dictionary of {@code size} keys of {@code keyBytes} in total.
+     */
+    static long estimatedBytes(int size, long keyBytes) {
+        return keyBytes * 3 + size * 72L + tableSizeFor(size) * 4L;
+    }
+
+    private int intern(byte[] buf, int off, int len, String s) {
+        int h = hash(buf, off, len);
+        int slot = slotOf(buf, off, len, h);
+        if (slots[slot] != NO_ID) {
+            return slots[slot];
+        }
+
+        if (s == null) {
+            s = new String(buf, off, len, StandardCharsets.UTF_8);
+            if (s.indexOf('\uFFFD') >= 0) {
+                // malformed input decodes the same way as a Reader would, so key it by the decoded string
+                byte[] canonical = s.getBytes(StandardCharsets.UTF_8);
+                if (canonical.length != len || !rangeEquals(canonical, 0, buf, off, len)) {
+                    return intern(canonical, 0, canonical.length, s);
+                }
+            }
+        }
+
+        if (size == strings.length) {
+            strings = Arrays.copyOf(strings, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2 + 1);
+        }
+        if (arena.length - arenaSize < len) {
+            arena = Arrays.copyOf(arena, Math.max(Math.addExact(arenaSize, len), arena.length * 2));
+        }
+        System.arraycopy(buf, off, arena, arenaSize, len);
+        arenaSize += len;
+
+        int id = size++;
+        strings[id] = s;
+        hashes[id] = h;
+        offsets[id + 1] = arenaSize;
+        slots[slot] = id;
+
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    private int slotOf(byte[] buf, int off, int len, int h) {
+        int mask = slots.length - 1;
+        int i = h & mask;
+        while (true) {
+            int id = slots[i];
+            if (id == NO_ID
+                    || hashes[id] == h
+                    && offsets[id + 1] - offsets[id] == len
+                    && rangeEquals(arena, offsets[id], buf, off, len)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void rehash(int newTableSize) {
+        int[] newSlots = new int[newTableSize];
+        Arrays.fill(newSlots, NO_ID);
+        int mask = newTableSize - 1;
+        for (int id = 0; id < size; id++) {
+            int i = hashes[id] & mask;
+            while (newSlots[i] != NO_ID) {
+                i = (i + 1) & mask;
+            }
+            newSlots[i] = id;
+        }
+        slots = newSlots;
+    }
+
+    private static boolean rangeEquals(byte[] a, int aOff, byte[] b, int bOff, int len) {
+        for (int i = 0; i < len; i++) {
+            if (a[aOff + i] != b[bOff + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int hash(byte[] buf, int off, int len) {
+        int h = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            h = 31 * h + buf[i];
+        }
+        return mix(h);
+    }
+
+    static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int tableSizeFor(int expectedSize) {
+        int n = 16;
+        while (n < expectedSize * 2L && n < (1 << 30)) {
+            n <<= 1;
+        }
+        return n;
+    }
+}
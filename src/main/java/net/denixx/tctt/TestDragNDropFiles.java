@@ -17,17 +17,57 @@ import java.awt.dnd.DropTargetDragEvent;
 import java.awt.dnd.DropTargetDropEvent;
 import java.awt.dnd.DropTargetEvent;
 import java.awt.dnd.DropTargetListener;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.TooManyListenersException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestDragNDropFiles {
     private static final Logger LOGGER = LoggerFactory.getLogger(TestDragNDropFiles.class);
 
+    private static final BatchConverter CONVERTER = new BatchConverter(Runtime.getRuntime().availableProcessors(), true);
+
+    /**
+     * Directory of the result cache, which is off without it: the same exports dropped again are then
+     * copied from the cache, at the cost of hashing every input.
+     */
+    private static final String CACHE_PROPERTY = "tctt.cache";
+    /**
+     * Size limit of the cache directory, 1g by default.
+     */
+    private static final String CACHE_SIZE_PROPERTY = "tctt.cache.size";
+
+    private static final ConversionOptions OPTIONS = options();
+
     private static final DropPane message = new DropPane();
 
+    private static ConversionOptions options() {
+        ConversionOptions.ConversionOptionsBuilder options = ConversionOptions.builder();
+        String cacheDirectory = System.getProperty(CACHE_PROPERTY, "").trim();
+        if (cacheDirectory.isEmpty()) {
+            return options.build();
+        }
+        options.cacheDirectory(new File(cacheDirectory));
+        String cacheSize = System.getProperty(CACHE_SIZE_PROPERTY);
+        if (cacheSize != null) {
+            try {
+                long bytes = Main.parseSize(cacheSize);
+                if (bytes < 1) {
+                    throw new NumberFormatException(cacheSize);
+                }
+                options.cacheMaxBytes(bytes);
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Ignoring {}={}, it is not a size like 512m", CACHE_SIZE_PROPERTY, cacheSize);
+            }
+        }
+        return options.build();
+    }
+
     public TestDragNDropFiles() {
         EventQueue.invokeLater(new Runnable() {
             @Override
@@ -57,6 +97,8 @@ public class TestDragNDropFiles {
         private boolean dragOver = false;
         private BufferedImage target;
 
+        private final List<BatchConverter.Batch> runningBatches = new ArrayList<>();
+
         public DropPane() {
             try {
                 target = ImageIO.read(TestDragNDropFiles.class.getResourceAsStream("/good-correct.png"));
@@ -73,11 +115,14 @@ public class TestDragNDropFiles {
             SimpleAttributeSet center = new SimpleAttributeSet();
             StyleConstants.setAlignment(center, StyleConstants.ALIGN_CENTER);
             doc.setParagraphAttributes(0, doc.getLength(), center, false);
+
+            getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "cancel");
+            getActionMap().put("cancel", new CancelAction(this));
         }
 
         @Override
         public Dimension getPreferredSize() {
-            return new Dimension(400, 200);
+            return new Dimension(400, 260);
         }
 
         protected DropTarget getMyDropTarget() {
@@ -127,39 +172,87 @@ public class TestDragNDropFiles {
         }
 
         protected void importFiles(final List files) {
-            Runnable run = new Runnable() {
+            List<File> fileList = new ArrayList<>(files.size());
+            for (Object o : files) {
+                fileList.add((File) o);
+            }
+
+            message.setText("Кинули файлов: " + fileList.size() + "\nКонвертирую...\n(Esc - отмена)");
+
+            AtomicInteger finishedCount = new AtomicInteger();
+            BatchConverter.Batch batch = CONVERTER.submit(fileList, OPTIONS, new BatchListener() {
                 @Override
-                public void run() {
-                    int convertedCount = 0;
-
-                    for (Object o : files) {
-                        File f = (File) o;
-                        if (!f.exists()) {
-                            LOGGER.error("No file at {}!", f.getPath());
-                            continue;
-                        }
-                        if (!f.isFile()) {
-                            LOGGER.error("This is not a file {}!", f.getPath());
-                            continue;
-                        }
-                        if (!f.canRead()) {
-                            LOGGER.error("File at {} is not readable! (permissions?)", f.getPath());
-                            continue;
-                        }
+                public void fileProgress(File f, long bytesRead, long bytesTotal) {
+                    int percent = (int) (bytesRead * 100 / Math.max(1, bytesTotal));
+                    SwingUtilities.invokeLater(() -> message.setText("Кинули файлов: " + fileList.size()
+                            + "\nГотово: " + finishedCount.get()
+                            + "\n" + f.getName() + ": " + percent + "%"));
+                }
 
-                        try {
-                            Converter.transpondTable(f);
-                            convertedCount++;
-                        } catch (Exception e) {
-                            LOGGER.error("Conversion error for file {}!", f.getPath(), e);
-                            continue;
-                        }
-                    }
+                @Override
+                public void fileFinished(FileResult result) {
+                    int finished = finishedCount.incrementAndGet();
+                    SwingUtilities.invokeLater(() -> message.setText("Кинули файлов: " + fileList.size()
+                            + "\nГотово: " + finished));
+                }
 
-                    message.setText("Вы кинули файлов: " + files.size() + "\nКонвертировано: " + convertedCount);
+                @Override
+                public void batchFinished(BatchSummary summary) {
+                    LOGGER.info("Batch summary: {}", summary);
+                    SwingUtilities.invokeLater(() -> {
+                        runningBatches.removeIf(BatchConverter.Batch::isDone);
+                        message.setText(summaryText(summary));
+                    });
                 }
-            };
-            SwingUtilities.invokeLater(run);
+            });
+            runningBatches.add(batch);
+        }
+
+        private String summaryText(BatchSummary summary) {
+            String text = "Вы кинули файлов: " + summary.total()
+                    + "\nКонвертировано: " + summary.count(FileResult.Status.CONVERTED);
+            int failed = summary.count(FileResult.Status.FAILED) + summary.count(FileResult.Status.REJECTED);
+            if (failed > 0) {
+                text += "\nС ошибками: " + failed;
+            }
+            if (OPTIONS.getCacheDirectory() != null) {
+                text += "\nИз кэша: " + summary.count(FileResult.Cache.HIT)
+                        + ", пересчитано: " + summary.count(FileResult.Cache.MISS);
+            }
+            int cancelled = summary.count(FileResult.Status.CANCELLED);
+            if (cancelled > 0) {
+                text += "\nОтменено: " + cancelled;
+            }
+            if (summary.totalRows() > 0) {
+                text += String.format("\nСтрок: %d (%.1f МБ)\nЗа %.1f с, %.0f строк/с",
+                        summary.totalRows(), summary.totalBytes() / (1024.0 * 1024.0),
+                        summary.getMillis() / 1000.0, summary.rowsPerSecond());
+            }
+            return text;
+        }
+
+        protected void cancelRunningBatches() {
+            for (BatchConverter.Batch batch : runningBatches) {
+                batch.cancel();
+            }
+        }
+
+        /**
+         * Cancels the running batches on Esc.
+         */
+        private static class CancelAction extends AbstractAction {
+            private static final long serialVersionUID = 1L;
+
+            private final DropPane pane;
+
+            CancelAction(DropPane pane) {
+                this.pane = pane;
+            }
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pane.cancelRunningBatches();
+            }
         }
 
         protected class DropTargetHandler implements DropTargetListener {
@@ -0,0 +1,248 @@
+package net.denixx.tctt;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Reads "time_marker value count" rows into a {@link RowSink}, usually a {@link CountTable}.
+ * <p>
+ * Plain lines (two spaces, no quotes, numeric count) are tokenized right on the UTF-8 bytes:
+ * value and date slices are passed on as bytes (a table looks them up in its dictionaries without decoding)
+ * and the count is parsed in place.
+ * The header and every other line (quotes, stray CRs, wrong number of columns...) go through
+ * the RFC4180 commons-csv parser, which also produces the validation errors: a malformed table
+ * fails with an {@link IllegalArgumentException}.
+ */
+public class ThreeColumnReader {
+    public static final char DELIMITER = ' ';
+
+    private static final CSVFormat FORMAT = CSVFormat.RFC4180.withDelimiter(DELIMITER);
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final RowSink sink;
+
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    private boolean headerPending;
+    private long recordNumber = 1;
+
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingQuotes;
+
+    private ThreeColumnReader(InputStream in, boolean withHeader, RowSink sink) {
+        this.in = in;
+        this.sink = sink;
+        this.headerPending = withHeader;
+    }
+
+    public static void read(InputStream in, boolean withHeader, RowSink sink) throws IOException {
+        new ThreeColumnReader(in, withHeader, sink).read();
+    }
+
+    private void read() throws IOException {
+        int scanFrom = pos;
+        while (true) {
+            int lineEnd = indexOf((byte) '\n', scanFrom, limit);
+            if (lineEnd >= 0) {
+                line(pos, lineEnd, true);
+                pos = lineEnd + 1;
+                scanFrom = pos;
+            } else if (eof) {
+                if (pos < limit) {
+                    line(pos, limit, false);
+                }
+                break;
+            } else {
+                int scanned = limit - pos;
+                fill();
+                scanFrom = pos + scanned;
+            }
+        }
+        if (pending.size() > 0) {
+            flushPending();
+        }
+    }
+
+    private void line(int start, int end, boolean terminated) throws IOException {
+        if (pending.size() > 0) {
+            appendPending(start, end, terminated);
+            return;
+        }
+
+        int contentEnd = end > start && buf[end - 1] == '\r' ? end - 1 : end;
+        if (headerPending || !tryFastLine(start, contentEnd)) {
+            appendPending(start, end, terminated);
+        }
+    }
+
+    private boolean tryFastLine(int start, int end) {
+        int firstSpace = -1;
+        int secondSpace = -1;
+        for (int i = start; i < end; i++) {
+            byte b = buf[i];
+            if (b == DELIMITER) {
+                if (firstSpace < 0) {
+                    firstSpace = i;
+                } else if (secondSpace < 0) {
+                    secondSpace = i;
+                } else {
+                    return false;
+                }
+            } else if (b == '"' || b == '\r') {
+                return false;
+            }
+        }
+        if (secondSpace < 0) {
+            return false;
+        }
+
+        int i = secondSpace + 1;
+        if (i == end) {
+            return false;
+        }
+        boolean negative = false;
+        if (buf[i] == '-' || buf[i] == '+') {
+            negative = buf[i] == '-';
+            if (++i == end) {
+                return false;
+            }
+        }
+        // accumulate negatively like Long.parseLong, so Long.MIN_VALUE fits too
+        long limitValue = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multMin = limitValue / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9 || result < multMin) {
+                return false;
+            }
+            result *= 10;
+            if (result < limitValue + digit) {
+                return false;
+            }
+            result -= digit;
+        }
+
+        sink.add(buf, start, firstSpace - start, firstSpace + 1, secondSpace - firstSpace - 1,
+                negative ? result : -result);
+        recordNumber++;
+        return true;
+    }
+
+    private void appendPending(int start, int end, boolean terminated) throws IOException {
+        pending.write(buf, start, end - start);
+        if (terminated) {
+            pending.write('\n');
+        }
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '"') {
+                pendingQuotes++;
+            }
+        }
+        // an odd number of quotes means a quoted field goes on in the next line
+        if ((pendingQuotes & 1) == 0) {
+            flushPending();
+        }
+    }
+
+    private void flushPending() throws IOException {
+        CSVFormat format = headerPending ? FORMAT.withFirstRecordAsHeader() : FORMAT;
+        try (CSVParser csvParser = new CSVParser(new InputStreamReader(
+                new ByteArrayInputStream(pending.toByteArray()), StandardCharsets.UTF_8), format, 0, recordNumber)) {
+            headerPending = false;
+            Iterator<CSVRecord> records = csvParser.iterator();
+            while (hasNext(records)) {
+                add(records.next());
+            }
+            recordNumber = csvParser.getRecordNumber() + 1;
+        }
+        pending.reset();
+        pendingQuotes = 0;
+    }
+
+    private boolean hasNext(Iterator<CSVRecord> records) {
+        try {
+            return records.hasNext();
+        } catch (IllegalStateException e) {
+            // commons-csv fails this way on malformed CSV; pending lines end with an open quote only at the end
+            throw (pendingQuotes & 1) != 0
+                    ? new UnclosedQuoteException(e)
+                    : new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    private void add(CSVRecord r) {
+        if (r.size() != 3) {
+            throw new IllegalArgumentException("I can work with only 3 columns! line: [" + r.toString() + "]");
+        }
+        String date = r.get(0);
+        String value = r.get(1);
+        String count = r.get(2);
+
+        long parsedCount;
+
+        try {
+            parsedCount = Long.parseLong(count);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad row format! Third column should be Long. line: ["
+                    + r.toString() + "]");
+        }
+
+        sink.add(date, value, parsedCount);
+    }
+
+    private void fill() throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Reading is cancelled");
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read < 0) {
+            eof = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    /**
+     * The input ended inside a quoted field, e.g. because it is a part of a file cut at a quoted line break.
+     */
+    static class UnclosedQuoteException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        UnclosedQuoteException(Throwable cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,222 @@
+package net.denixx.tctt;
+
+import java.io.BufferedOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntFunction;
+
+/**
+ * Writes the transposed table as {@code ;}-delimited RFC 4180 CSV, exactly as a commons-csv {@code CSVPrinter}
+ * would (minimal quoting, CRLF record separators): counts and averages go straight into a char buffer,
+ * only strings are checked for quoting.
+ * Not thread-safe, but keeps no shared state, so any number of them can work concurrently.
+ */
+public class TransposedCsvWriter implements Flushable, AutoCloseable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_NUMBER_LENGTH = 32;
+    private static final char DELIMITER = ';';
+    private static final char QUOTE = '"';
+
+    private final Writer out;
+    private final FixedDecimalFormatter formatter = new FixedDecimalFormatter();
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos;
+    private boolean newRecord = true;
+
+    public TransposedCsvWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * UTF-8 writer over a stream; {@link #flush()} pushes everything down to the stream.
+     */
+    public static TransposedCsvWriter open(OutputStream out) {
+        return new TransposedCsvWriter(new OutputStreamWriter(
+                new BufferedOutputStream(out, BUFFER_SIZE), StandardCharsets.UTF_8));
+    }
+
+    public void writeHeader(IntFunction<String> dates, int[] sortedDateIds) throws IOException {
+        writeString("value");
+        writeString("avgByAll");
+        writeString("avgByNE");
+        for (int dateId : sortedDateIds) {
+            writeString(dates.apply(dateId));
+        }
+        endRecord();
+    }
+
+    public void writeRow(CountTable table, TransposedRows rows, int valueId, int datesCount) throws IOException {
+        writeString(table.value(valueId));
+        writeDouble(table.avgByAll(valueId));
+        writeDouble(table.avgByNotEmpty(valueId));
+        int cell = rows.rowStart(valueId);
+        int rowEnd = rows.rowEnd(valueId);
+        for (int rank = 0; rank < datesCount; rank++) {
+            if (cell < rowEnd && rows.dateRank(cell) == rank) {
+                writeLong(rows.count(cell++));
+            } else {
+                writeEmpty();
+            }
+        }
+        endRecord();
+    }
+
+    public void writeString(String value) throws IOException {
+        startField();
+        if (!needsQuotes(value, newRecord)) {
+            append(value);
+        } else {
+            ensure(1);
+            buf[pos++] = QUOTE;
+            int start = 0;
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) == QUOTE) {
+                    append(value, start, i + 1);
+                    start = i;
+                }
+            }
+            append(value, start, value.length());
+            ensure(1);
+            buf[pos++] = QUOTE;
+        }
+        newRecord = false;
+    }
+
+    public void writeLong(long value) throws IOException {
+        startField();
+        ensure(MAX_NUMBER_LENGTH);
+        if (value == Long.MIN_VALUE) {
+            append(Long.toString(value));
+        } else {
+            if (value < 0) {
+                buf[pos++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10) {
+                digits++;
+            }
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                buf[i] = (char) ('0' + (int) (value % 10));
+                value /= 10;
+            }
+            pos += digits;
+        }
+        newRecord = false;
+    }
+
+    public void writeDouble(double value) throws IOException {
+        ensure(MAX_NUMBER_LENGTH + 1);
+        int off = newRecord ? pos : pos + 1;
+        int len = formatter.format(value, buf, off);
+        if (len < 0 || needsQuotes(buf, off, len)) {
+            // negative, non-finite or huge values and exotic locale symbols take the generic path
+            writeString(len < 0 ? formatter.fallbackFormat(value) : new String(buf, off, len));
+            return;
+        }
+        startField();
+        pos += len;
+        newRecord = false;
+    }
+
+    public void writeEmpty() throws IOException {
+        startField();
+        newRecord = false;
+    }
+
+    public void endRecord() throws IOException {
+        ensure(2);
+        buf[pos++] = '\r';
+        buf[pos++] = '\n';
+        newRecord = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Same rules as commons-csv MINIMAL quote mode.
+     */
+    static boolean needsQuotes(CharSequence value, boolean newRecord) {
+        int len = value.length();
+        if (len == 0) {
+            // an empty first field would make the record look like an empty line
+            return newRecord;
+        }
+        if (value.charAt(0) <= '#') {
+            return true;
+        }
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c == '\n' || c == '\r' || c == QUOTE || c == DELIMITER) {
+                return true;
+            }
+        }
+        return value.charAt(len - 1) <= ' ';
+    }
+
+    private static boolean needsQuotes(char[] chars, int off, int len) {
+        if (chars[off] <= '#' || chars[off + len - 1] <= ' ') {
+            return true;
+        }
+        for (int i = off; i < off + len; i++) {
+            char c = chars[i];
+            if (c == '\n' || c == '\r' || c == QUOTE || c == DELIMITER) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void startField() throws IOException {
+        if (!newRecord) {
+            ensure(1);
+            buf[pos++] = DELIMITER;
+        }
+    }
+
+    private void append(String s) throws IOException {
+        append(s, 0, s.length());
+    }
+
+    private void append(String s, int from, int to) throws IOException {
+        while (from < to) {
+            if (pos == buf.length) {
+                flushBuffer();
+            }
+            int n = Math.min(to - from, buf.length - pos);
+            s.getChars(from, from + n, buf, pos);
+            pos += n;
+            from += n;
+        }
+    }
+
+    private void ensure(int chars) throws IOException {
+        if (buf.length - pos < chars) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package net.denixx.tctt;
+
+import java.util.Arrays;
+
+/**
+ * Compressed rows of a {@link CountTable}: the cells of every value laid out one after another
+ * and ordered by date rank, so a row is written by walking it alongside the sorted dates.
+ */
+public class TransposedRows {
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    private final int[] rowStart;
+    private final int[] dateRanks;
+    private final long[] counts;
+
+    TransposedRows(int[] rowStart, int[] dateRanks, long[] counts) {
+        this.rowStart = rowStart;
+        this.dateRanks = dateRanks;
+        this.counts = counts;
+    }
+
+    public int rowStart(int valueId) {
+        return rowStart[valueId];
+    }
+
+    public int rowEnd(int valueId) {
+        return rowStart[valueId + 1];
+    }
+
+    public int dateRank(int cell) {
+        return dateRanks[cell];
+    }
+
+    public long count(int cell) {
+        return counts[cell];
+    }
+
+    /**
+     * @param rowSizes cells per value; values with 0 are left out
+     */
+    static TransposedRows build(CountMatrix matrix, int[] rowSizes, int valuesCount, int[] sortedDateIds) {
+        int[] rankOfDate = new int[sortedDateIds.length];
+        for (int rank = 0; rank < sortedDateIds.length; rank++) {
+            rankOfDate[sortedDateIds[rank]] = rank;
+        }
+
+        int[] rowStart = new int[valuesCount + 1];
+        for (int v = 0; v < valuesCount; v++) {
+            rowStart[v + 1] = Math.addExact(rowStart[v], rowSizes[v]);
+        }
+
+        int[] dateRanks = new int[rowStart[valuesCount]];
+        long[] counts = new long[dateRanks.length];
+        int[] cursor = Arrays.copyOf(rowStart, valuesCount);
+
+        matrix.forEachCell((valueId, dateId, count) -> {
+            if (rowSizes[valueId] == 0) {
+                return;
+            }
+            int cell = cursor[valueId]++;
+            dateRanks[cell] = rankOfDate[dateId];
+            counts[cell] = count;
+        });
+
+        for (int v = 0; v < valuesCount; v++) {
+            sortRow(dateRanks, counts, rowStart[v], rowStart[v + 1]);
+        }
+        return new TransposedRows(rowStart, dateRanks, counts);
+    }
+
+    private static void sortRow(int[] ranks, long[] counts, int from, int to) {
+        boolean sorted = true;
+        for (int i = from + 1; i < to && sorted; i++) {
+            sorted = ranks[i - 1] < ranks[i];
+        }
+        if (sorted) {
+            return;
+        }
+
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int rank = ranks[i];
+                long count = counts[i];
+                int j = i - 1;
+                while (j >= from && ranks[j] > rank) {
+                    ranks[j + 1] = ranks[j];
+                    counts[j + 1] = counts[j];
+                    j--;
+                }
+                ranks[j + 1] = rank;
+                counts[j + 1] = count;
+            }
+            return;
+        }
+
+        long[] keys = new long[to - from];
+        for (int i = from; i < to; i++) {
+            keys[i - from] = ((long) ranks[i] << 32) | (i - from);
+        }
+        Arrays.sort(keys);
+        long[] rowCounts = Arrays.copyOfRange(counts, from, to);
+        for (int i = 0; i < keys.length; i++) {
+            ranks[from + i] = (int) (keys[i] >>> 32);
+            counts[from + i] = rowCounts[(int) keys[i]];
+        }
+    }
+}